@@ -22,33 +22,40 @@ import static java.time.temporal.ChronoUnit.SECONDS;
 import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior;
 import com.android.imsserviceentitlement.entitlement.EntitlementResult;
-import com.android.imsserviceentitlement.fcm.FcmTokenStore;
+import com.android.imsserviceentitlement.entitlement.EntitlementResultCache;
+import com.android.imsserviceentitlement.entitlement.EntitlementSnapshot;
 import com.android.imsserviceentitlement.fcm.FcmUtils;
-import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlAttributes;
-import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlNode;
 import com.android.imsserviceentitlement.ts43.Ts43SmsOverIpStatus;
 import com.android.imsserviceentitlement.ts43.Ts43VolteStatus;
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
-import com.android.imsserviceentitlement.utils.XmlDoc;
 import com.android.libraries.entitlement.CarrierConfig;
 import com.android.libraries.entitlement.ServiceEntitlement;
 import com.android.libraries.entitlement.ServiceEntitlementException;
 import com.android.libraries.entitlement.ServiceEntitlementRequest;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.net.HttpHeaders;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.format.DateTimeParseException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 /** Implementation of the entitlement API. */
 public class ImsEntitlementApi {
@@ -63,6 +70,7 @@ public class ImsEntitlementApi {
     private final int mSubId;
     private final ServiceEntitlement mServiceEntitlement;
     private final EntitlementConfiguration mLastEntitlementConfiguration;
+    private final Duration mResultCacheTtl;
 
     private int mRetryFullAuthenticationCount = AUTHENTICATION_RETRIES;
     private boolean mNeedsImsProvisioning;
@@ -70,6 +78,11 @@ public class ImsEntitlementApi {
     @VisibleForTesting
     static Clock sClock = Clock.systemUTC();
 
+    // The query in progress of each subscription, which is shared by the concurrent callers.
+    @GuardedBy("ImsEntitlementApi.class")
+    private static final SparseArray<SettableFuture<EntitlementResult>> sInFlightQueries =
+            new SparseArray<>();
+
     public ImsEntitlementApi(Context context, int subId) {
         this.mContext = context;
         this.mSubId = subId;
@@ -77,6 +90,7 @@ public class ImsEntitlementApi {
         this.mNeedsImsProvisioning = TelephonyUtils.isImsProvisioningRequired(context, subId);
         this.mServiceEntitlement = new ServiceEntitlement(context, carrierConfig, subId);
         this.mLastEntitlementConfiguration = new EntitlementConfiguration(context, subId);
+        this.mResultCacheTtl = getResultCacheTtl(context);
     }
 
     @VisibleForTesting
@@ -91,21 +105,136 @@ public class ImsEntitlementApi {
         this.mNeedsImsProvisioning = needsImsProvisioning;
         this.mServiceEntitlement = serviceEntitlement;
         this.mLastEntitlementConfiguration = lastEntitlementConfiguration;
+        this.mResultCacheTtl = getResultCacheTtl(context);
+    }
+
+    /**
+     * Returns the result of a recent {@link #checkEntitlementStatus()} of this subscription, by any
+     * caller, if it is still fresh; {@code null} otherwise. It is a memory read and never blocks.
+     */
+    @Nullable
+    public EntitlementResult getCachedEntitlementStatus() {
+        return EntitlementResultCache.get(mSubId);
     }
 
     /**
      * Returns WFC entitlement check result from carrier API (over network), or {@code null} on
      * unrecoverable network issue or malformed server response. This is blocking call so should
      * not be called on main thread.
+     *
+     * <p>If a query of the same subscription is already in progress, e.g. by the polling service,
+     * this call waits for it and returns its result instead of querying again. The configuration
+     * stored by that query is read by this instance too, as {@link EntitlementConfiguration} reads
+     * the data store shared by the subscription.
      */
     @Nullable
     public EntitlementResult checkEntitlementStatus() {
+        while (true) {
+            SettableFuture<EntitlementResult> inFlightQuery;
+            boolean isInFlight;
+            synchronized (ImsEntitlementApi.class) {
+                inFlightQuery = sInFlightQueries.get(mSubId);
+                isInFlight = inFlightQuery != null;
+                if (!isInFlight) {
+                    inFlightQuery = SettableFuture.create();
+                    sInFlightQueries.put(mSubId, inFlightQuery);
+                }
+            }
+            if (!isInFlight) {
+                return runInFlightQuery(inFlightQuery);
+            }
+            Log.d(TAG, "Join the in-flight query, subId=" + mSubId);
+            try {
+                return awaitInFlightQuery(inFlightQuery);
+            } catch (CancellationException e) {
+                // The caller of the query is cancelled, e.g. a stopped polling job. Query again
+                // rather than take the outcome of a cancellation this caller didn't make.
+                Log.d(TAG, "The in-flight query is cancelled, query again.");
+            }
+        }
+    }
+
+    /**
+     * Queries and completes {@code inFlightQuery} with the outcome for the callers joined it. If
+     * the calling thread is interrupted, {@code inFlightQuery} is cancelled instead.
+     */
+    @Nullable
+    private EntitlementResult runInFlightQuery(SettableFuture<EntitlementResult> inFlightQuery) {
+        EntitlementResult result = null;
+        RuntimeException exception = null;
+        try {
+            result = queryEntitlementStatus();
+        } catch (RuntimeException e) {
+            exception = e;
+        } finally {
+            // Removed before completed, so a caller woken up by the completion doesn't join it.
+            synchronized (ImsEntitlementApi.class) {
+                sInFlightQueries.remove(mSubId);
+            }
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            inFlightQuery.cancel(/* mayInterruptIfRunning= */ false);
+        } else if (exception != null) {
+            inFlightQuery.setException(exception);
+        } else {
+            if (result != null && result.getRetryAfterSeconds() < 0) {
+                EntitlementResultCache.put(mSubId, result, getResultFreshness());
+            }
+            inFlightQuery.set(result);
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the result of the query made by another caller.
+     *
+     * @throws CancellationException if the caller of the query is cancelled.
+     */
+    @Nullable
+    private static EntitlementResult awaitInFlightQuery(
+            ListenableFuture<EntitlementResult> inFlightQuery) {
+        try {
+            return inFlightQuery.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns how long the latest result stays fresh: the configured TTL, but not longer than the
+     * validity of the configuration it is made of.
+     */
+    private Duration getResultFreshness() {
+        long versValidity = mLastEntitlementConfiguration.getVersValidity();
+        if (versValidity > 0 && Duration.ofSeconds(versValidity).compareTo(mResultCacheTtl) < 0) {
+            return Duration.ofSeconds(versValidity);
+        }
+        return mResultCacheTtl;
+    }
+
+    @Nullable
+    private EntitlementResult queryEntitlementStatus() {
         Log.d(TAG, "checkEntitlementStatus subId=" + mSubId);
         ServiceEntitlementRequest.Builder requestBuilder = ServiceEntitlementRequest.builder();
         mLastEntitlementConfiguration.getToken().ifPresent(
                 token -> requestBuilder.setAuthenticationToken(token));
-        FcmUtils.fetchFcmToken(mContext, mSubId);
-        requestBuilder.setNotificationToken(FcmTokenStore.getToken(mContext, mSubId));
+        ListenableFuture<String> fcmToken = FcmUtils.fetchFcmTokenAsync(mContext, mSubId);
+        if (fcmToken.isDone()) {
+            requestBuilder.setNotificationToken(Futures.getUnchecked(fcmToken));
+        } else {
+            // Don't wait for the token; FcmUtils queries again once it's available so the server
+            // can push.
+            Log.d(TAG, "FCM token unavailable, query without it.");
+            requestBuilder.setNotificationToken("");
+        }
         // Set fake device info to avoid leaking
         requestBuilder.setTerminalVendor("vendorX");
         requestBuilder.setTerminalModel("modelY");
@@ -117,7 +246,7 @@ public class ImsEntitlementApi {
         }
         ServiceEntitlementRequest request = requestBuilder.build();
 
-        XmlDoc entitlementXmlDoc = null;
+        EntitlementSnapshot entitlementSnapshot = null;
 
         try {
             String rawXml = mServiceEntitlement.queryEntitlementStatus(
@@ -128,8 +257,8 @@ public class ImsEntitlementApi {
                             ServiceEntitlement.APP_SMSOIP)
                             : ImmutableList.of(ServiceEntitlement.APP_VOWIFI),
                     request);
-            entitlementXmlDoc = new XmlDoc(rawXml);
             mLastEntitlementConfiguration.update(rawXml);
+            entitlementSnapshot = mLastEntitlementConfiguration.getSnapshot();
             // Reset the retry count if no exception from queryEntitlementStatus()
             mRetryFullAuthenticationCount = AUTHENTICATION_RETRIES;
         } catch (ServiceEntitlementException e) {
@@ -143,7 +272,7 @@ public class ImsEntitlementApi {
                     // Clean up the cached data and perform full authentication next query.
                     mLastEntitlementConfiguration.reset();
                     mRetryFullAuthenticationCount--;
-                    return checkEntitlementStatus();
+                    return queryEntitlementStatus();
                 } else if (e.getHttpStatus() == RESPONSE_RETRY_AFTER && !TextUtils.isEmpty(
                         e.getRetryAfter())) {
                     // For handling the case of HTTP_UNAVAILABLE(503), client would perform the
@@ -157,7 +286,7 @@ public class ImsEntitlementApi {
             }
             Log.e(TAG, "queryEntitlementStatus failed", e);
         }
-        return entitlementXmlDoc == null ? null : toEntitlementResult(entitlementXmlDoc);
+        return entitlementSnapshot == null ? null : toEntitlementResult(entitlementSnapshot);
     }
 
     /**
@@ -180,7 +309,7 @@ public class ImsEntitlementApi {
         return -1;
     }
 
-    private EntitlementResult toEntitlementResult(XmlDoc doc) {
+    private EntitlementResult toEntitlementResult(EntitlementSnapshot snapshot) {
         EntitlementResult.Builder builder = EntitlementResult.builder();
         ClientBehavior clientBehavior = mLastEntitlementConfiguration.entitlementValidation();
 
@@ -193,19 +322,27 @@ public class ImsEntitlementApi {
                 mLastEntitlementConfiguration.resetConfigsExceptVers();
             }
         } else {
-            builder.setVowifiStatus(Ts43VowifiStatus.builder(doc).build())
-                    .setVolteStatus(Ts43VolteStatus.builder(doc).build())
-                    .setSmsoveripStatus(Ts43SmsOverIpStatus.builder(doc).build());
-            doc.get(
-                    ResponseXmlNode.APPLICATION,
-                    ResponseXmlAttributes.SERVER_FLOW_URL,
-                    ServiceEntitlement.APP_VOWIFI)
-                    .ifPresent(url -> builder.setEmergencyAddressWebUrl(url));
-            doc.get(
-                    ResponseXmlNode.APPLICATION,
-                    ResponseXmlAttributes.SERVER_FLOW_USER_DATA,
-                    ServiceEntitlement.APP_VOWIFI)
-                    .ifPresent(userData -> builder.setEmergencyAddressWebData(userData));
+            builder.setVowifiStatus(
+                            Ts43VowifiStatus.builder()
+                                    .setEntitlementStatus(snapshot.vowifiStatus())
+                                    .setTcStatus(snapshot.vowifiTcStatus())
+                                    .setAddrStatus(snapshot.vowifiAddrStatus())
+                                    .setProvStatus(snapshot.vowifiProvStatus())
+                                    .build())
+                    .setVolteStatus(
+                            Ts43VolteStatus.builder()
+                                    .setEntitlementStatus(snapshot.volteStatus())
+                                    .build())
+                    .setSmsoveripStatus(
+                            Ts43SmsOverIpStatus.builder()
+                                    .setEntitlementStatus(snapshot.smsOverIpStatus())
+                                    .build());
+            if (snapshot.vowifiServiceFlowUrl() != null) {
+                builder.setEmergencyAddressWebUrl(snapshot.vowifiServiceFlowUrl());
+            }
+            if (snapshot.vowifiServiceFlowUserData() != null) {
+                builder.setEmergencyAddressWebData(snapshot.vowifiServiceFlowUserData());
+            }
         }
         return builder.build();
     }
@@ -217,6 +354,11 @@ public class ImsEntitlementApi {
                 || clientBehavior == ClientBehavior.NEEDS_TO_RESET_EXCEPT_VERS_UNTIL_SETTING_ON;
     }
 
+    private static Duration getResultCacheTtl(Context context) {
+        return Duration.ofSeconds(
+                context.getResources().getInteger(R.integer.entitlement_result_cache_ttl_seconds));
+    }
+
     private CarrierConfig getCarrierConfig(Context context) {
         String entitlementServiceUrl = TelephonyUtils.getEntitlementServerUrl(context, mSubId);
         return CarrierConfig.builder().setServerUrl(entitlementServiceUrl).build();
@@ -31,12 +31,13 @@ import android.app.job.JobParameters;
 import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.Context;
-import android.os.AsyncTask;
 import android.os.PersistableBundle;
 import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
@@ -48,8 +49,16 @@ import com.android.imsserviceentitlement.job.JobManager;
 import com.android.imsserviceentitlement.utils.ImsUtils;
 import com.android.imsserviceentitlement.utils.MetricsLogger;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
+import com.android.imsserviceentitlement.utils.WriteCoalescer;
 
 import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The {@link JobService} for querying entitlement status in the background. The jobId is unique for
@@ -63,16 +72,33 @@ public class ImsEntitlementPollingService extends JobService {
             ComponentName.unflattenFromString(
                     "com.android.imsserviceentitlement/.ImsEntitlementPollingService");
 
+    // One thread per SIM slot, so the polls of different subscriptions run in parallel.
+    private static final int MAX_CONCURRENT_POLLS = 2;
+    private static final long POLLING_THREAD_KEEP_ALIVE_SECONDS = 30L;
+    private static final ExecutorService POLLING_EXECUTOR = newPollingExecutor();
+
     private ImsEntitlementApi mImsEntitlementApi;
 
     /**
      * Cache job id associated {@link EntitlementPollingTask} objects for canceling once job be
      * canceled.
      */
+    @GuardedBy("mTasks")
     private final SparseArray<EntitlementPollingTask> mTasks = new SparseArray<>();
 
     @VisibleForTesting
-    EntitlementPollingTask mOngoingTask;
+    Future<?> mOngoingTask;
+
+    private static ThreadPoolExecutor newPollingExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_POLLS,
+                MAX_CONCURRENT_POLLS,
+                POLLING_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
     @Override
     @VisibleForTesting
@@ -94,15 +120,6 @@ public class ImsEntitlementPollingService extends JobService {
                 .queryEntitlementStatusOnceNetworkReady(retryCount);
     }
 
-    /** Enqueues a job to query entitlement status with delay. */
-    private static void enqueueJobWithDelay(Context context, int subId, long delayInSeconds) {
-        JobManager.getInstance(
-                context,
-                COMPONENT_NAME,
-                subId)
-                .queryEntitlementStatusOnceNetworkReady(0, Duration.ofSeconds(delayInSeconds));
-    }
-
     @Override
     public boolean onStartJob(final JobParameters params) {
         PersistableBundle bundle = params.getExtras();
@@ -122,9 +139,11 @@ public class ImsEntitlementPollingService extends JobService {
 
         // if the same job ID is scheduled again, the current one will be cancelled by platform and
         // #onStopJob will be called to removed the job.
-        mOngoingTask = new EntitlementPollingTask(params, subId);
-        mTasks.put(jobId, mOngoingTask);
-        mOngoingTask.execute();
+        EntitlementPollingTask task = new EntitlementPollingTask(params, subId);
+        synchronized (mTasks) {
+            mTasks.put(jobId, task);
+        }
+        mOngoingTask = POLLING_EXECUTOR.submit(task);
         return true;
     }
 
@@ -132,23 +151,38 @@ public class ImsEntitlementPollingService extends JobService {
     public boolean onStopJob(final JobParameters params) {
         int jobId = params.getJobId();
         Log.d(TAG, "onStopJob: " + jobId);
-        EntitlementPollingTask task = mTasks.get(jobId);
-        if (task != null) {
-            task.cancel(true);
+        EntitlementPollingTask task;
+        synchronized (mTasks) {
+            task = mTasks.get(jobId);
             mTasks.remove(jobId);
         }
+        if (task != null) {
+            task.cancel();
+        }
 
         return true;
     }
 
-    @VisibleForTesting
-    class EntitlementPollingTask extends AsyncTask<Void, Void, Void> {
+    private void removeTask(int jobId, EntitlementPollingTask task) {
+        synchronized (mTasks) {
+            if (mTasks.get(jobId) == task) {
+                mTasks.remove(jobId);
+            }
+        }
+    }
+
+    /**
+     * Queries entitlement status for a job. A stopped job is cancelled by interrupting the thread
+     * running it, and its result is not applied.
+     */
+    private class EntitlementPollingTask implements Runnable {
         private final JobParameters mParams;
         private final ImsEntitlementApi mImsEntitlementApi;
         private final ImsUtils mImsUtils;
         private final TelephonyUtils mTelephonyUtils;
         private final MetricsLogger mMetricsLogger;
         private final int mSubid;
+        private final int mRetryCount;
         private final boolean mNeedsImsProvisioning;
 
         // States for metrics
@@ -159,11 +193,20 @@ public class ImsEntitlementPollingService extends JobService {
         private int mVolteResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__UNKNOWN_RESULT;
         private int mSmsoipResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__UNKNOWN_RESULT;
 
+        // The thread running this task, interrupted on cancellation; null if not running.
+        @GuardedBy("this")
+        @Nullable
+        private Thread mThread;
+
+        @GuardedBy("this")
+        private boolean mCancelled;
+
         EntitlementPollingTask(final JobParameters params, int subId) {
             this.mParams = params;
             this.mImsUtils = ImsUtils.getInstance(ImsEntitlementPollingService.this, subId);
             this.mTelephonyUtils = new TelephonyUtils(ImsEntitlementPollingService.this, subId);
             this.mSubid = subId;
+            this.mRetryCount = params.getExtras().getInt(JobManager.EXTRA_RETRY_COUNT, 0);
             this.mNeedsImsProvisioning = TelephonyUtils.isImsProvisioningRequired(
                     ImsEntitlementPollingService.this, mSubid);
             this.mImsEntitlementApi = ImsEntitlementPollingService.this.mImsEntitlementApi != null
@@ -173,29 +216,59 @@ public class ImsEntitlementPollingService extends JobService {
         }
 
         @Override
-        protected Void doInBackground(Void... unused) {
-            int jobId = JobManager.getPureJobId(mParams.getJobId());
-            switch (jobId) {
-                case JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID:
-                    mMetricsLogger.start(IMS_SERVICE_ENTITLEMENT_UPDATED__PURPOSE__POLLING);
-                    doEntitlementCheck();
-                    break;
-                default:
-                    break;
+        public void run() {
+            if (attachThread()) {
+                try {
+                    int jobId = JobManager.getPureJobId(mParams.getJobId());
+                    switch (jobId) {
+                        case JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID:
+                            mMetricsLogger.start(IMS_SERVICE_ENTITLEMENT_UPDATED__PURPOSE__POLLING);
+                            doEntitlementCheck();
+                            break;
+                        default:
+                            break;
+                    }
+                } finally {
+                    detachThread();
+                }
+                // Makes the entitlement state durable before the job finishes.
+                WriteCoalescer.awaitDurable();
             }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void unused) {
-            Log.d(TAG, "JobId:" + mParams.getJobId() + "- Task done.");
+            removeTask(mParams.getJobId(), this);
             sendStatsLogToMetrics();
+            if (isCancelled()) {
+                Log.d(TAG, "JobId:" + mParams.getJobId() + "- Task cancelled.");
+                return;
+            }
+            Log.d(TAG, "JobId:" + mParams.getJobId() + "- Task done.");
             ImsEntitlementPollingService.this.jobFinished(mParams, false);
         }
 
-        @Override
-        protected void onCancelled(Void unused) {
-            sendStatsLogToMetrics();
+        /** Cancels the task, interrupting the thread running it if any. */
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mThread != null) {
+                mThread.interrupt();
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /** Returns {@code false} if the task is cancelled before running. */
+        private synchronized boolean attachThread() {
+            if (mCancelled) {
+                return false;
+            }
+            mThread = Thread.currentThread();
+            return true;
+        }
+
+        private synchronized void detachThread() {
+            mThread = null;
+            // Clears the interrupt of a cancellation, as the thread is reused by the executor.
+            Thread.interrupted();
         }
 
         private void doEntitlementCheck() {
@@ -209,36 +282,19 @@ public class ImsEntitlementPollingService extends JobService {
 
         @WorkerThread
         private void doImsEntitlementCheck() {
+            EntitlementResult result = null;
             try {
-                EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+                result = mImsEntitlementApi.checkEntitlementStatus();
                 Log.d(TAG, "Entitlement result: " + result);
 
-                if (performRetryIfNeeded(result)) {
+                if (isCancelled() || performRetryIfNeeded(result)) {
                     return;
                 }
 
-                if (shouldTurnOffWfc(result)) {
-                    mImsUtils.setVowifiProvisioned(false);
-                    mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
-                } else {
-                    mImsUtils.setVowifiProvisioned(true);
-                    mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED;
-                }
-
-                if (shouldTurnOffVolte(result)) {
-                    mImsUtils.setVolteProvisioned(false);
-                    mVolteResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
-                } else {
-                    mImsUtils.setVolteProvisioned(true);
-                    mVolteResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED;
-                }
-
-                if (shouldTurnOffSMSoIP(result)) {
-                    mImsUtils.setSmsoipProvisioned(false);
-                    mSmsoipResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
-                } else {
-                    mImsUtils.setSmsoipProvisioned(true);
-                    mSmsoipResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED;
+                // A result asking to retry is not applied even if the retry budget ran out; the
+                // entitlement status is checked again after VERS.validity then.
+                if (!shouldRetry(result)) {
+                    pushProvisioning(result);
                 }
             } catch (RuntimeException e) {
                 mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
@@ -246,20 +302,59 @@ public class ImsEntitlementPollingService extends JobService {
                 mSmsoipResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
                 Log.d(TAG, "checkEntitlementStatus failed.", e);
             }
+            if (isCancelled()) {
+                return;
+            }
+            // Falls back to the VERS.validity once the retry budget ran out.
+            if (result == null && scheduleRetry(Duration.ZERO)) {
+                return;
+            }
             checkVersValidity();
         }
 
+        private void pushProvisioning(@Nullable EntitlementResult result) {
+            boolean vowifiProvisioned = !shouldTurnOffWfc(result);
+            boolean volteProvisioned = !shouldTurnOffVolte(result);
+            boolean smsoipProvisioned = !shouldTurnOffSMSoIP(result);
+            Map<Integer, Boolean> provisioning = new ArrayMap<>();
+            provisioning.put(ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, vowifiProvisioned);
+            provisioning.put(ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, volteProvisioned);
+            provisioning.put(ImsUtils.KEY_SMS_OVER_IP_ENABLED, smsoipProvisioned);
+
+            // Only the values differ from the ones in the IMS stack are pushed. They are read
+            // from the IMS stack rather than remembered, as it could have reset them, e.g. on
+            // reboot, SIM change or its restart.
+            Map<Integer, Boolean> updates = new ArrayMap<>();
+            for (Map.Entry<Integer, Boolean> entry : provisioning.entrySet()) {
+                if (!Optional.of(entry.getValue())
+                        .equals(mImsUtils.getProvisioned(entry.getKey()))) {
+                    updates.put(entry.getKey(), entry.getValue());
+                }
+            }
+            Log.d(TAG, "Provisioning updates: " + updates);
+            Map<Integer, Boolean> results =
+                    updates.isEmpty() ? updates : mImsUtils.setProvisioned(updates);
+
+            mVowifiResult = toAppResult(
+                    vowifiProvisioned, results, ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE);
+            mVolteResult = toAppResult(
+                    volteProvisioned, results, ImsUtils.KEY_VOLTE_PROVISIONING_STATUS);
+            mSmsoipResult = toAppResult(
+                    smsoipProvisioned, results, ImsUtils.KEY_SMS_OVER_IP_ENABLED);
+        }
+
         @WorkerThread
         private void doWfcEntitlementCheck() {
             if (!mImsUtils.isWfcEnabledByUser()) {
                 Log.d(TAG, "WFC not turned on; checkEntitlementStatus not needed this time.");
                 return;
             }
+            EntitlementResult result = null;
             try {
-                EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+                result = mImsEntitlementApi.checkEntitlementStatus();
                 Log.d(TAG, "Entitlement result: " + result);
 
-                if (performRetryIfNeeded(result)) {
+                if (isCancelled() || performRetryIfNeeded(result) || shouldRetry(result)) {
                     return;
                 }
 
@@ -273,37 +368,63 @@ public class ImsEntitlementPollingService extends JobService {
                 mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
                 Log.d(TAG, "checkEntitlementStatus failed.", e);
             }
+            if (result == null && !isCancelled()) {
+                scheduleRetry(Duration.ZERO);
+            }
+        }
+
+        /**
+         * Returns the metrics result of an application; FAILED if its provisioning {@code key}
+         * failed to be set.
+         */
+        private int toAppResult(boolean provisioned, Map<Integer, Boolean> results, int key) {
+            if (Boolean.FALSE.equals(results.get(key))) {
+                return IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
+            }
+            return provisioned
+                    ? IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__ENABLED
+                    : IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__DISABLED;
         }
 
         /**
          * Performs retry if needed. Returns true if {@link ImsEntitlementPollingService} has
-         * scheduled.
+         * scheduled; false if not needed or the retry budget ran out.
          */
         private boolean performRetryIfNeeded(@Nullable EntitlementResult result) {
-            if (result == null || result.getRetryAfterSeconds() < 0) {
+            if (!shouldRetry(result)) {
                 return false;
             }
             mVowifiResult = IMS_SERVICE_ENTITLEMENT_UPDATED__APP_RESULT__FAILED;
-            ImsEntitlementPollingService.enqueueJobWithDelay(
-                    ImsEntitlementPollingService.this,
-                    mSubid,
-                    result.getRetryAfterSeconds());
-            return true;
+            return scheduleRetry(Duration.ofSeconds(result.getRetryAfterSeconds()));
+        }
+
+        /** Returns {@code true} if the server asked to retry later, e.g. on HTTP 503. */
+        private boolean shouldRetry(@Nullable EntitlementResult result) {
+            return result != null && result.getRetryAfterSeconds() >= 0;
+        }
+
+        /**
+         * Schedules entitlement status check again with backoff, not earlier than {@code
+         * retryAfter}. Returns false if the retry budget ran out.
+         */
+        private boolean scheduleRetry(Duration retryAfter) {
+            return JobManager.getInstance(ImsEntitlementPollingService.this, COMPONENT_NAME, mSubid)
+                    .retryQueryEntitlementStatusOnceNetworkReady(mRetryCount, retryAfter);
         }
 
         /**
-         * Schedules entitlement status check after a VERS.validity time, if the last valid is
-         * during validity.
+         * Schedules entitlement status check before a VERS.validity time expires, if the last
+         * valid is during validity.
          */
         private void checkVersValidity() {
             EntitlementConfiguration lastEntitlementConfiguration =
                     new EntitlementConfiguration(ImsEntitlementPollingService.this, mSubid);
             if (lastEntitlementConfiguration.entitlementValidation()
                     == ClientBehavior.VALID_DURING_VALIDITY) {
-                enqueueJobWithDelay(
-                        ImsEntitlementPollingService.this,
-                        mSubid,
-                        lastEntitlementConfiguration.getVersValidity());
+                JobManager.getInstance(ImsEntitlementPollingService.this, COMPONENT_NAME, mSubid)
+                        .queryEntitlementStatusBeforeValidityExpiry(
+                                Duration.ofSeconds(
+                                        lastEntitlementConfiguration.getVersValidity()));
             }
         }
 
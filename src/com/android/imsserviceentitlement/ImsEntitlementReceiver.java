@@ -38,8 +38,11 @@ import androidx.annotation.WorkerThread;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior;
+import com.android.imsserviceentitlement.entitlement.EntitlementResultCache;
+import com.android.imsserviceentitlement.fcm.FcmSenderIdIndex;
 import com.android.imsserviceentitlement.job.JobManager;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
+import com.android.imsserviceentitlement.utils.WriteCoalescer;
 
 /** Watches events and manages service entitlement polling. */
 public class ImsEntitlementReceiver extends BroadcastReceiver {
@@ -68,21 +71,33 @@ public class ImsEntitlementReceiver extends BroadcastReceiver {
                 intent.getIntExtra(
                         SubscriptionManager.EXTRA_SLOT_INDEX,
                         SubscriptionManager.INVALID_SIM_SLOT_INDEX);
-        Dependencies dependencies = createDependency(context, currentSubId);
-        if (!dependencies.userManager.isSystemUser()
-                || !SubscriptionManager.isValidSubscriptionId(currentSubId)
-                || dependencies.telephonyUtils.getSimApplicationState() != SIM_STATE_LOADED
-                || !TelephonyUtils.isImsProvisioningRequired(context, currentSubId)) {
+        String action = intent.getAction();
+        if (!CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)) {
             return;
         }
 
-        String action = intent.getAction();
-        if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(action)) {
-            final PendingResult result = goAsync();
-            getAsyncExecutor().execute(
-                    () -> handleCarrierConfigChanged(
-                            context, currentSubId, slotId, dependencies.jobManager, result));
-        }
+        // The FCM sender ID of any subscription could be changed, or a SIM is changed.
+        TelephonyUtils.invalidateCarrierConfigCache(currentSubId);
+        FcmSenderIdIndex.invalidate();
+        Dependencies dependencies = createDependency(context, currentSubId);
+        boolean needsEntitlementCheck = dependencies.userManager.isSystemUser()
+                && SubscriptionManager.isValidSubscriptionId(currentSubId)
+                && dependencies.telephonyUtils.getSimApplicationState() == SIM_STATE_LOADED
+                && TelephonyUtils.isImsProvisioningRequired(context, currentSubId);
+
+        final PendingResult result = goAsync();
+        getAsyncExecutor().execute(() -> {
+            // Rebuilt for any change, as a subscription without IMS provisioning or a removed
+            // one also changes which subscriptions a push is dispatched to.
+            FcmSenderIdIndex.rebuild(context);
+            if (needsEntitlementCheck) {
+                handleCarrierConfigChanged(
+                        context, currentSubId, slotId, dependencies.jobManager);
+            }
+            if (result != null) {
+                result.finish();
+            }
+        });
     }
 
     /**
@@ -91,8 +106,7 @@ public class ImsEntitlementReceiver extends BroadcastReceiver {
      */
     @WorkerThread
     private void handleCarrierConfigChanged(
-            Context context, int currentSubId, int slotId, JobManager jobManager,
-            PendingResult result) {
+            Context context, int currentSubId, int slotId, JobManager jobManager) {
         boolean shouldQuery = false;
 
         // Handle device boot up.
@@ -108,12 +122,13 @@ public class ImsEntitlementReceiver extends BroadcastReceiver {
         }
 
         // Handle SIM changed.
-        int lastSubId = getAndSetSubId(context, currentSubId, slotId);
+        int lastSubId = getAndSetSubIdAndBootCount(context, currentSubId, slotId);
         if (currentSubId != lastSubId) {
             Log.d(TAG,
                     "SubId for slot " + slotId + " changed: " + lastSubId + " -> " + currentSubId);
             if (SubscriptionManager.isValidSubscriptionId(lastSubId)) {
                 new EntitlementConfiguration(context, lastSubId).reset();
+                EntitlementResultCache.invalidate(lastSubId);
             }
             shouldQuery = true;
         }
@@ -122,37 +137,41 @@ public class ImsEntitlementReceiver extends BroadcastReceiver {
             jobManager.queryEntitlementStatusOnceNetworkReady();
         }
 
-        if (result != null) {
-            result.finish();
-        }
+        WriteCoalescer.awaitDurable();
     }
 
-    /**
-     * Returns {@code true} if current boot count greater than previous one. Saves the latest boot
-     * count into shared preference.
-     */
+    /** Returns {@code true} if current boot count differs from the one saved last time. */
     @VisibleForTesting
     boolean isBootUp(Context context, int slotId) {
         SharedPreferences preferences =
                 context.getSharedPreferences(PREFERENCE_ACTIVATION_INFO, Context.MODE_PRIVATE);
         int lastBootCount = preferences.getInt(KEY_LAST_BOOT_COUNT + slotId, 0);
-        int currentBootCount =
-                Settings.Global.getInt(
-                        context.getContentResolver(), Settings.Global.BOOT_COUNT, /* def= */ -1);
-        preferences.edit().putInt(KEY_LAST_BOOT_COUNT + slotId, currentBootCount).apply();
-
-        return currentBootCount != lastBootCount;
+        return getBootCount(context) != lastBootCount;
     }
 
-    private int getAndSetSubId(Context context, int currentSubId, int slotId) {
+    /**
+     * Returns the last known subscription id of the SIM slot. Saves the current subscription id
+     * and boot count in one edit.
+     */
+    private int getAndSetSubIdAndBootCount(Context context, int currentSubId, int slotId) {
         SharedPreferences preferences =
                 context.getSharedPreferences(PREFERENCE_ACTIVATION_INFO, Context.MODE_PRIVATE);
         int lastSubId = preferences.getInt(
                 KEY_LAST_SUB_ID + slotId, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
-        preferences.edit().putInt(KEY_LAST_SUB_ID + slotId, currentSubId).apply();
+        preferences
+                .edit()
+                .putInt(KEY_LAST_SUB_ID + slotId, currentSubId)
+                .putInt(KEY_LAST_BOOT_COUNT + slotId, getBootCount(context))
+                .apply();
+        WriteCoalescer.enqueueSync(PREFERENCE_ACTIVATION_INFO, preferences);
         return lastSubId;
     }
 
+    private static int getBootCount(Context context) {
+        return Settings.Global.getInt(
+                context.getContentResolver(), Settings.Global.BOOT_COUNT, /* def= */ -1);
+    }
+
     /** Returns initialized dependencies */
     @VisibleForTesting
     Dependencies createDependency(Context context, int subId) {
@@ -116,9 +116,19 @@ public class WfcActivationController {
         }
     }
 
-    /** Evaluates entitlement status for activation or update. */
+    /**
+     * Evaluates entitlement status for activation or update. A fresh result of a recent query, e.g.
+     * by the background polling, is used directly without querying again if it decides the
+     * activation; see {@link #getCachedActivationResult}.
+     */
     @MainThread
     public void evaluateEntitlementStatus() {
+        EntitlementResult cachedResult = getCachedActivationResult();
+        if (cachedResult != null) {
+            Log.d(TAG, "Use the cached entitlement result.");
+            handleInitialEntitlementStatus(cachedResult);
+            return;
+        }
         if (!mTelephonyUtils.isNetworkConnected()) {
             handleInitialEntitlementStatus(null);
             return;
@@ -127,6 +137,23 @@ public class WfcActivationController {
                 mImsEntitlementApi, result -> handleInitialEntitlementStatus(result));
     }
 
+    /**
+     * Returns a fresh result of a recent query if it decides the activation without the web flow;
+     * {@code null} otherwise. The web flow needs the service flow data of a new query, as its
+     * token may be single-use or short-lived.
+     */
+    @Nullable
+    private EntitlementResult getCachedActivationResult() {
+        if (!isActivationFlow()) {
+            return null;
+        }
+        EntitlementResult cachedResult = mImsEntitlementApi.getCachedEntitlementStatus();
+        if (cachedResult == null || cachedResult.getVowifiStatus().serverDataMissing()) {
+            return null;
+        }
+        return cachedResult;
+    }
+
     /**
      * Indicates the controller to re-evaluate WFC entitlement status after activation flow finished
      * successfully (ie. not canceled) by user.
@@ -17,76 +17,137 @@
 package com.android.imsserviceentitlement.entitlement;
 
 import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
 
-import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlAttributes;
-import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlNode;
 import com.android.imsserviceentitlement.utils.XmlDoc;
-import com.android.libraries.entitlement.ServiceEntitlement;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 /** Provides the entitlement characteristic which stored from previous query. */
 public class EntitlementConfiguration {
-    /** Default value of version for VERS characteristic. */
-    private static final int DEFAULT_VERSION = 0;
-    /** Default value of validity for VERS and TOKEN characteristics. */
-    private static final long DEFAULT_VALIDITY = 0;
-    /** Default value of VoLTE/VoWifi/SMSoverIP entitlemenet status. */
-    private static final int INCOMPATIBLE_STATE = 2;
+    private static final String TAG = "IMSSE-EntitlementConfiguration";
 
-    private final EntitlementConfigurationsDataStore mConfigurationsDataStore;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_BUFFER_SIZE = 1024;
 
-    private XmlDoc mXmlDoc = new XmlDoc(null);
+    private final EntitlementConfigurationsDataStore mConfigurationsDataStore;
 
     public EntitlementConfiguration(Context context, int subId) {
         mConfigurationsDataStore = EntitlementConfigurationsDataStore.getInstance(context, subId);
-        mConfigurationsDataStore.get().ifPresent(rawXml -> mXmlDoc = new XmlDoc(rawXml));
     }
 
-    /** Update VERS characteristics with given version and validity. */
+    /**
+     * Update VERS characteristics with given version and validity. If {@code rawXml} is the same
+     * document as the stored one, it is not parsed again and only the query time is updated.
+     *
+     * @throws NumberFormatException if a numeric value in {@code rawXml} is malformed, and the
+     *     stored configuration is not changed in that case.
+     */
     public void update(String rawXml) {
-        mConfigurationsDataStore.set(rawXml);
-        mXmlDoc = new XmlDoc(rawXml);
+        byte[] documentHash = hashOf(rawXml);
+        if (documentHash != null
+                && Arrays.equals(documentHash, mConfigurationsDataStore.getDocumentHash())) {
+            Log.d(TAG, "Same document as the stored one, skip parsing.");
+            mConfigurationsDataStore.touch();
+            return;
+        }
+        update(EntitlementSnapshot.from(new XmlDoc(rawXml)), documentHash);
+    }
+
+    private void update(EntitlementSnapshot snapshot, @Nullable byte[] documentHash) {
+        mConfigurationsDataStore.set(snapshot, documentHash);
+    }
+
+    /**
+     * Returns the SHA-256 hash of the UTF-8 bytes of {@code rawXml}; {@code null} if not available.
+     * The document is encoded a small chunk at a time, so hashing doesn't copy the whole of it.
+     */
+    @Nullable
+    private static byte[] hashOf(@Nullable String rawXml) {
+        if (rawXml == null) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Unable to hash the document. " + e);
+            return null;
+        }
+        // Replace malformed chars the same way as String#getBytes, so the hash is the same.
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.wrap(rawXml);
+        ByteBuffer bytes = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        while (encoder.encode(chars, bytes, /* endOfInput= */ true).isOverflow()) {
+            updateDigest(digest, bytes);
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            updateDigest(digest, bytes);
+        }
+        updateDigest(digest, bytes);
+        return digest.digest();
+    }
+
+    private static void updateDigest(MessageDigest digest, ByteBuffer bytes) {
+        bytes.flip();
+        digest.update(bytes);
+        bytes.clear();
+    }
+
+    /**
+     * Returns the {@link EntitlementSnapshot} of the stored configuration. It is decoded once when
+     * the configuration is stored and kept in memory by the data store, so reading its values has
+     * no parsing cost, and sees an update made through any instance of the subscription.
+     */
+    public EntitlementSnapshot getSnapshot() {
+        return mConfigurationsDataStore.get().orElse(EntitlementSnapshot.empty());
     }
 
     /**
      * Returns VoLTE entitlement status from the {@link EntitlementConfigurationsDataStore}. If no
-     * data exist then return the default value {@link #INCOMPATIBLE_STATE}.
+     * data exist then return the default value {@link EntitlementSnapshot#INCOMPATIBLE_STATE}.
      */
     public int getVolteStatus() {
-        return mXmlDoc.get(
-                ResponseXmlNode.APPLICATION,
-                ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                ServiceEntitlement.APP_VOLTE)
-                .map(Integer::parseInt)
-                .orElse(INCOMPATIBLE_STATE);
+        return getSnapshot().volteStatus();
     }
 
     /**
      * Returns VoWiFi entitlement status from the {@link EntitlementConfigurationsDataStore}. If no
-     * data exist then return the default value {@link #INCOMPATIBLE_STATE}.
+     * data exist then return the default value {@link EntitlementSnapshot#INCOMPATIBLE_STATE}.
      */
     public int getVoWifiStatus() {
-        return mXmlDoc.get(
-                ResponseXmlNode.APPLICATION,
-                ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                ServiceEntitlement.APP_VOWIFI)
-                .map(Integer::parseInt)
-                .orElse(INCOMPATIBLE_STATE);
+        return getSnapshot().vowifiStatus();
     }
 
     /**
      * Returns SMSoIP entitlement status from the {@link EntitlementConfigurationsDataStore}. If no
-     * data exist then return the default value {@link #INCOMPATIBLE_STATE}.
+     * data exist then return the default value {@link EntitlementSnapshot#INCOMPATIBLE_STATE}.
      */
     public int getSmsOverIpStatus() {
-        return mXmlDoc.get(
-                ResponseXmlNode.APPLICATION,
-                ResponseXmlAttributes.ENTITLEMENT_STATUS,
-                ServiceEntitlement.APP_SMSOIP)
-                .map(Integer::parseInt)
-                .orElse(INCOMPATIBLE_STATE);
+        return getSnapshot().smsOverIpStatus();
+    }
+
+    /**
+     * Returns the time the stored document was last received from the server, in milliseconds
+     * since epoch; 0 if the stored configuration is not received, e.g. a reset one.
+     */
+    public long getDocumentTimeMillis() {
+        return mConfigurationsDataStore.getDocumentHash() == null
+                ? 0
+                : mConfigurationsDataStore.getQueryTimeMillis();
     }
 
     /**
@@ -96,7 +157,7 @@ public class EntitlementConfiguration {
      */
     public Optional<String> getToken() {
         return isTokenInValidityPeriod()
-                ? mXmlDoc.get(ResponseXmlNode.TOKEN, ResponseXmlAttributes.TOKEN, null)
+                ? Optional.ofNullable(getSnapshot().token())
                 : Optional.empty();
     }
 
@@ -123,21 +184,15 @@ public class EntitlementConfiguration {
      * received by the client. If no data exist then returns default value 0.
      */
     public long getTokenValidity() {
-        return mXmlDoc.get(
-                ResponseXmlNode.TOKEN,
-                ResponseXmlAttributes.VALIDITY,
-                null)
-                .map(Long::parseLong)
-                .orElse(DEFAULT_VALIDITY);
+        return getSnapshot().tokenValidity();
     }
 
     /**
      * Returns version stored in the {@link EntitlementCharacteristicDataStore}.
-     * If no data exists then return the default value {@link #DEFAULT_VERSION}.
+     * If no data exists then return the default value {@link EntitlementSnapshot#DEFAULT_VERSION}.
      */
     public String getVersion() {
-        return mXmlDoc.get(ResponseXmlNode.VERS, ResponseXmlAttributes.VERSION, null)
-                .orElse(String.valueOf(DEFAULT_VERSION));
+        return String.valueOf(getSnapshot().version());
     }
 
     /**
@@ -145,12 +200,7 @@ public class EntitlementConfiguration {
      * received by the client. If no data exist then returns default value 0.
      */
     public long getVersValidity() {
-        return mXmlDoc.get(
-                ResponseXmlNode.VERS,
-                ResponseXmlAttributes.VALIDITY,
-                null)
-                .map(Long::parseLong)
-                .orElse(DEFAULT_VALIDITY);
+        return getSnapshot().versValidity();
     }
 
     public enum ClientBehavior {
@@ -178,18 +228,9 @@ public class EntitlementConfiguration {
 
     /** Returns {@link ClientBehavior} for the service to be configured. */
     public ClientBehavior entitlementValidation() {
-        int version = mXmlDoc.get(
-                ResponseXmlNode.VERS,
-                ResponseXmlAttributes.VERSION,
-                null)
-                .map(Integer::parseInt)
-                .orElse(DEFAULT_VERSION);
-        long validity = mXmlDoc.get(
-                ResponseXmlNode.VERS,
-                ResponseXmlAttributes.VALIDITY,
-                null)
-                .map(Long::parseLong)
-                .orElse(DEFAULT_VALIDITY);
+        EntitlementSnapshot snapshot = getSnapshot();
+        int version = snapshot.version();
+        long validity = snapshot.versValidity();
 
         if (version > 0 && validity > 0) {
             return ClientBehavior.VALID_DURING_VALIDITY;
@@ -225,34 +266,16 @@ public class EntitlementConfiguration {
         //   - VoLTE.EntitlementStatus=2 (INCOMPATIBLE_STATE)
         //   - VoWiFi.EntitlementStatus=2 (INCOMPATIBLE_STATE)
         //   - SMSoIP.EntitlementStatus=2 (INCOMPATIBLE_STATE)
-        update(null);
+        update(EntitlementSnapshot.empty(), null);
     }
 
     /** Reverts to the default configurations except the version and validity. */
     public void resetConfigsExceptVers() {
-        String rawXml =
-                "<wap-provisioningdoc version=\"1.1\">"
-                + "  <characteristic type=\"VERS\">"
-                + "    <parm name=\"version\" value=\"" + getVersion() + "\"/>"
-                + "    <parm name=\"validity\" value=\"" + getVersValidity() + "\"/>"
-                + "  </characteristic>"
-                + "  <characteristic type=\"TOKEN\">"
-                + "    <parm name=\"token\" value=\"\"/>"
-                + "    <parm name=\"validity\" value=\"0\"/>"
-                + "  </characteristic>"
-                + "  <characteristic type=\"APPLICATION\">"
-                + "    <parm name=\"AppID\" value=\"ap2003\"/>"
-                + "    <parm name=\"EntitlementStatus\" value=\"2\"/>"
-                + "  </characteristic>"
-                + "  <characteristic type=\"APPLICATION\">"
-                + "    <parm name=\"AppID\" value=\"ap2004\"/>"
-                + "    <parm name=\"EntitlementStatus\" value=\"2\"/>"
-                + "  </characteristic>"
-                + "  <characteristic type=\"APPLICATION\">"
-                + "    <parm name=\"AppID\" value=\"ap2005\"/>"
-                + "    <parm name=\"EntitlementStatus\" value=\"2\"/>"
-                + "  </characteristic>"
-                + "</wap-provisioningdoc>";
-        update(rawXml);
+        EntitlementSnapshot snapshot = getSnapshot();
+        update(EntitlementSnapshot.builder()
+                .setVersion(snapshot.version())
+                .setVersValidity(snapshot.versValidity())
+                .build(),
+                null);
     }
 }
@@ -18,47 +18,286 @@ package com.android.imsserviceentitlement.entitlement;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.AtomicFile;
+import android.util.Log;
 import android.util.SparseArray;
 
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.imsserviceentitlement.utils.WriteCoalescer;
+import com.android.imsserviceentitlement.utils.XmlDoc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
 
+/**
+ * Stores the {@link EntitlementSnapshot} of the last query with the query time, in a versioned
+ * binary record of a dedicated file per subscription. The record is read on first use and kept in
+ * memory.
+ *
+ * <p>Record format, version 2: {@code int formatVersion, long queryTimeMillis}, then the fields
+ * of {@link EntitlementSnapshot} in declaration order, then the hash of the document the snapshot
+ * decoded from. A string is written as {@code int length} of its UTF-8 bytes followed by the
+ * bytes, and so is a hash of its bytes; length -1 for {@code null}. Version 1 has no hash.
+ */
 class EntitlementConfigurationsDataStore {
+    private static final String TAG = "IMSSE-EntitlementConfigurationsDataStore";
+
+    // The legacy storage, of which the raw XML document is migrated to the record.
     private static final String PREFERENCE_ENTITLEMENT_CHARACTERISTICS =
             "ENTITLEMENT_CHARACTERISTICS";
     private static final String XML_DOCUMENT = "XML_DOCUMENT";
     private static final String QUERY_TIME_MILLIS = "QUERY_TIME_MILLIS";
 
-    private final SharedPreferences mPreferences;
+    private static final String RECORD_FILE_NAME = "entitlement_configurations";
+    private static final int FORMAT_VERSION = 2;
+    private static final int FORMAT_VERSION_WITHOUT_HASH = 1;
+    private static final int NULL_LENGTH = -1;
 
+    @GuardedBy("EntitlementConfigurationsDataStore.class")
     private static final SparseArray<EntitlementConfigurationsDataStore> sInstances =
             new SparseArray<>();
 
-    public static EntitlementConfigurationsDataStore getInstance(Context context, int subId) {
+    private final Context mContext;
+    private final String mLegacyPreferenceName;
+    private final AtomicFile mRecordFile;
+
+    // Whether the stored state is loaded, or replaced before loaded.
+    @GuardedBy("this")
+    private boolean mLoaded;
+    // Whether the legacy preference should be removed once the record is written, as it is
+    // replaced without being migrated.
+    @GuardedBy("this")
+    private boolean mDiscardLegacyPreference;
+    @GuardedBy("this")
+    @Nullable
+    private EntitlementSnapshot mSnapshot;
+    @GuardedBy("this")
+    private long mQueryTimeMillis;
+    @GuardedBy("this")
+    @Nullable
+    private byte[] mDocumentHash;
+
+    public static synchronized EntitlementConfigurationsDataStore getInstance(
+            Context context, int subId) {
         if (sInstances.get(subId) == null) {
             sInstances.put(subId, new EntitlementConfigurationsDataStore(context, subId));
         }
         return sInstances.get(subId);
     }
 
-    private EntitlementConfigurationsDataStore(Context context, int subId) {
-        this.mPreferences = context.getSharedPreferences(
-                PREFERENCE_ENTITLEMENT_CHARACTERISTICS + "_" + subId,
-                Context.MODE_PRIVATE);
+    @VisibleForTesting
+    EntitlementConfigurationsDataStore(Context context, int subId) {
+        mContext = context.getApplicationContext();
+        mLegacyPreferenceName = PREFERENCE_ENTITLEMENT_CHARACTERISTICS + "_" + subId;
+        mRecordFile = new AtomicFile(
+                new File(context.getFilesDir(), RECORD_FILE_NAME + "_" + subId));
+    }
+
+    /**
+     * Stores the {@code snapshot} decoded from a document of {@code documentHash}, with current
+     * time as the query time. The record is written by {@link WriteCoalescer}, so consecutive
+     * updates are written once. The stored state is not loaded, as it is replaced.
+     */
+    public synchronized void set(EntitlementSnapshot snapshot, @Nullable byte[] documentHash) {
+        if (!mLoaded) {
+            mLoaded = true;
+            mDiscardLegacyPreference = true;
+        }
+        mSnapshot = snapshot;
+        mDocumentHash = documentHash;
+        mQueryTimeMillis = System.currentTimeMillis();
+        enqueueWriteRecord();
+    }
+
+    /** Sets current time as the query time of the stored snapshot, which is received again. */
+    public synchronized void touch() {
+        ensureLoaded();
+        if (mSnapshot == null) {
+            return;
+        }
+        mQueryTimeMillis = System.currentTimeMillis();
+        enqueueWriteRecord();
+    }
+
+    @GuardedBy("this")
+    private void enqueueWriteRecord() {
+        WriteCoalescer.enqueue(mRecordFile.getBaseFile().getPath(), () -> {
+            synchronized (this) {
+                writeRecord();
+                if (mDiscardLegacyPreference) {
+                    mDiscardLegacyPreference = false;
+                    mContext.deleteSharedPreferences(mLegacyPreferenceName);
+                }
+            }
+        });
     }
 
-    public void set(String characteristics) {
-        mPreferences
-                .edit()
-                .putString(XML_DOCUMENT, characteristics)
-                .putLong(QUERY_TIME_MILLIS, System.currentTimeMillis())
-                .apply();
+    /** Returns the stored snapshot; {@link Optional#empty()} if never stored. */
+    public synchronized Optional<EntitlementSnapshot> get() {
+        ensureLoaded();
+        return Optional.ofNullable(mSnapshot);
     }
 
-    public Optional<String> get() {
-        return Optional.ofNullable(mPreferences.getString(XML_DOCUMENT, null));
+    public synchronized long getQueryTimeMillis() {
+        ensureLoaded();
+        return mQueryTimeMillis;
     }
 
-    public long getQueryTimeMillis() {
-        return mPreferences.getLong(QUERY_TIME_MILLIS, 0);
+    /**
+     * Returns the hash of the document which the stored snapshot decoded from; {@code null} if
+     * not decoded from a document, e.g. a reset one.
+     */
+    @Nullable
+    public synchronized byte[] getDocumentHash() {
+        ensureLoaded();
+        return mDocumentHash;
+    }
+
+    /** Loads the stored state on first read, so a write-only caller never reads the disk. */
+    @GuardedBy("this")
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!readRecord()) {
+            migrateFromPreferences(
+                    mContext.getSharedPreferences(mLegacyPreferenceName, Context.MODE_PRIVATE));
+        }
+    }
+
+    /** Returns {@code true} if the record file exists and is read. */
+    @GuardedBy("this")
+    private boolean readRecord() {
+        // The record is small; read it at once so a stored length can be checked against it.
+        try (DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(mRecordFile.readFully()))) {
+            int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION
+                    && formatVersion != FORMAT_VERSION_WITHOUT_HASH) {
+                Log.w(TAG, "Unknown record format version " + formatVersion + ", discarded.");
+                return true;
+            }
+            mQueryTimeMillis = in.readLong();
+            mSnapshot = EntitlementSnapshot.builder()
+                    .setVersion(in.readInt())
+                    .setVersValidity(in.readLong())
+                    .setToken(readString(in))
+                    .setTokenValidity(in.readLong())
+                    .setVolteStatus(in.readInt())
+                    .setVowifiStatus(in.readInt())
+                    .setVowifiTcStatus(in.readInt())
+                    .setVowifiAddrStatus(in.readInt())
+                    .setVowifiProvStatus(in.readInt())
+                    .setVowifiServiceFlowUrl(readString(in))
+                    .setVowifiServiceFlowUserData(readString(in))
+                    .setSmsOverIpStatus(in.readInt())
+                    .build();
+            mDocumentHash = formatVersion == FORMAT_VERSION ? readBytes(in) : null;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read record, discarded. " + e);
+            mSnapshot = null;
+            mQueryTimeMillis = 0;
+            mDocumentHash = null;
+        }
+        return true;
+    }
+
+    @GuardedBy("this")
+    private void writeRecord() {
+        FileOutputStream out = null;
+        try {
+            out = mRecordFile.startWrite();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(FORMAT_VERSION);
+            data.writeLong(mQueryTimeMillis);
+            data.writeInt(mSnapshot.version());
+            data.writeLong(mSnapshot.versValidity());
+            writeString(data, mSnapshot.token());
+            data.writeLong(mSnapshot.tokenValidity());
+            data.writeInt(mSnapshot.volteStatus());
+            data.writeInt(mSnapshot.vowifiStatus());
+            data.writeInt(mSnapshot.vowifiTcStatus());
+            data.writeInt(mSnapshot.vowifiAddrStatus());
+            data.writeInt(mSnapshot.vowifiProvStatus());
+            writeString(data, mSnapshot.vowifiServiceFlowUrl());
+            writeString(data, mSnapshot.vowifiServiceFlowUserData());
+            data.writeInt(mSnapshot.smsOverIpStatus());
+            writeBytes(data, mDocumentHash);
+            data.flush();
+            mRecordFile.finishWrite(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write record. " + e);
+            mRecordFile.failWrite(out);
+        }
+    }
+
+    /**
+     * Decodes the raw XML document stored by former versions into the record, and then removes
+     * the preference.
+     */
+    @GuardedBy("this")
+    private void migrateFromPreferences(SharedPreferences preferences) {
+        if (!preferences.contains(QUERY_TIME_MILLIS)) {
+            return;
+        }
+        try {
+            mSnapshot = EntitlementSnapshot.from(
+                    new XmlDoc(preferences.getString(XML_DOCUMENT, null)));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Malformed stored configuration, use the default one. " + e);
+            mSnapshot = EntitlementSnapshot.empty();
+        }
+        mQueryTimeMillis = preferences.getLong(QUERY_TIME_MILLIS, 0);
+        mDocumentHash = null;
+        writeRecord();
+        mContext.deleteSharedPreferences(mLegacyPreferenceName);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value)
+            throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Nullable
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        } else if (length < 0 || length > in.available()) {
+            throw new IOException("Malformed length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, @Nullable byte[] bytes)
+            throws IOException {
+        if (bytes == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Keeps the latest {@link EntitlementResult} of each subscription in memory for a short period, so
+ * the UI can show a decision made by a recent query without another round trip to the server.
+ */
+public final class EntitlementResultCache {
+    private static final String TAG = "IMSSE-EntitlementResultCache";
+
+    @GuardedBy("EntitlementResultCache.class")
+    private static final SparseArray<CachedResult> sResults = new SparseArray<>();
+
+    @VisibleForTesting
+    static Clock sClock = Clock.systemUTC();
+
+    private EntitlementResultCache() {}
+
+    /**
+     * Caches the {@code result} of {@code subId} for {@code ttl}. A non-positive {@code ttl} only
+     * removes the cached one.
+     */
+    public static synchronized void put(int subId, EntitlementResult result, Duration ttl) {
+        if (ttl.isZero() || ttl.isNegative()) {
+            sResults.remove(subId);
+            return;
+        }
+        sResults.put(subId, new CachedResult(result, Instant.now(sClock).plus(ttl)));
+    }
+
+    /** Returns the cached result of {@code subId}; {@code null} if none or expired. */
+    @Nullable
+    public static synchronized EntitlementResult get(int subId) {
+        CachedResult cachedResult = sResults.get(subId);
+        if (cachedResult == null) {
+            return null;
+        }
+        if (!Instant.now(sClock).isBefore(cachedResult.mExpiry)) {
+            Log.d(TAG, "Cached result expired, subId=" + subId);
+            sResults.remove(subId);
+            return null;
+        }
+        return cachedResult.mResult;
+    }
+
+    /** Removes the cached result of {@code subId}, e.g. on SIM change. */
+    public static synchronized void invalidate(int subId) {
+        sResults.remove(subId);
+    }
+
+    @VisibleForTesting
+    static synchronized void clear() {
+        sResults.clear();
+    }
+
+    private static final class CachedResult {
+        final EntitlementResult mResult;
+        final Instant mExpiry;
+
+        CachedResult(EntitlementResult result, Instant expiry) {
+            mResult = result;
+            mExpiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import androidx.annotation.Nullable;
+
+import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlAttributes;
+import com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlNode;
+import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus;
+import com.android.imsserviceentitlement.utils.XmlDoc;
+import com.android.libraries.entitlement.ServiceEntitlement;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * The entitlement characteristics of a TS.43 document, decoded once into primitive values. Each
+ * value is the default one if it does not exist in the document.
+ */
+@AutoValue
+public abstract class EntitlementSnapshot {
+    /** Default value of version for VERS characteristic. */
+    static final int DEFAULT_VERSION = 0;
+    /** Default value of validity for VERS and TOKEN characteristics. */
+    static final long DEFAULT_VALIDITY = 0;
+    /** Default value of VoLTE/VoWifi/SMSoverIP entitlemenet status. */
+    static final int INCOMPATIBLE_STATE = 2;
+
+    private static final EntitlementSnapshot EMPTY = builder().build();
+
+    /** The version of VERS characteristic. */
+    public abstract int version();
+    /** The validity of VERS characteristic, in seconds. */
+    public abstract long versValidity();
+    /** The token of TOKEN characteristic; {@code null} if not exist. */
+    @Nullable
+    public abstract String token();
+    /** The validity of TOKEN characteristic, in seconds. */
+    public abstract long tokenValidity();
+    /** The entitlement status of VoLTE. */
+    public abstract int volteStatus();
+    /** The entitlement status of VoWiFi. */
+    public abstract int vowifiStatus();
+    /** The terms and condition status of VoWiFi. */
+    public abstract int vowifiTcStatus();
+    /** The emergency address status of VoWiFi. */
+    public abstract int vowifiAddrStatus();
+    /** The provision status of VoWiFi. */
+    public abstract int vowifiProvStatus();
+    /** The URL to the VoWiFi service flow; {@code null} if not exist. */
+    @Nullable
+    public abstract String vowifiServiceFlowUrl();
+    /** The user data of the VoWiFi service flow; {@code null} if not exist. */
+    @Nullable
+    public abstract String vowifiServiceFlowUserData();
+    /** The entitlement status of SMSoIP. */
+    public abstract int smsOverIpStatus();
+
+    /** Returns the snapshot of a empty document, i.e. all values are the default ones. */
+    public static EntitlementSnapshot empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Decodes the {@code doc} into a snapshot.
+     *
+     * @throws NumberFormatException if a numeric value in the {@code doc} is malformed.
+     */
+    public static EntitlementSnapshot from(XmlDoc doc) {
+        return builder()
+                .setVersion(parseInt(
+                        doc, ResponseXmlNode.VERS, ResponseXmlAttributes.VERSION, null,
+                        DEFAULT_VERSION))
+                .setVersValidity(parseLong(
+                        doc, ResponseXmlNode.VERS, ResponseXmlAttributes.VALIDITY,
+                        DEFAULT_VALIDITY))
+                .setToken(
+                        doc.getOrDefault(
+                                ResponseXmlNode.TOKEN, ResponseXmlAttributes.TOKEN, null, null))
+                .setTokenValidity(parseLong(
+                        doc, ResponseXmlNode.TOKEN, ResponseXmlAttributes.VALIDITY,
+                        DEFAULT_VALIDITY))
+                .setVolteStatus(parseInt(
+                        doc, ResponseXmlNode.APPLICATION, ResponseXmlAttributes.ENTITLEMENT_STATUS,
+                        ServiceEntitlement.APP_VOLTE, INCOMPATIBLE_STATE))
+                .setVowifiStatus(parseInt(
+                        doc, ResponseXmlNode.APPLICATION, ResponseXmlAttributes.ENTITLEMENT_STATUS,
+                        ServiceEntitlement.APP_VOWIFI, INCOMPATIBLE_STATE))
+                .setVowifiTcStatus(parseInt(
+                        doc, ResponseXmlNode.APPLICATION, ResponseXmlAttributes.TC_STATUS,
+                        ServiceEntitlement.APP_VOWIFI, Ts43VowifiStatus.TcStatus.NOT_REQUIRED))
+                .setVowifiAddrStatus(parseInt(
+                        doc, ResponseXmlNode.APPLICATION, ResponseXmlAttributes.ADDR_STATUS,
+                        ServiceEntitlement.APP_VOWIFI, Ts43VowifiStatus.AddrStatus.NOT_REQUIRED))
+                .setVowifiProvStatus(parseInt(
+                        doc, ResponseXmlNode.APPLICATION, ResponseXmlAttributes.PROVISION_STATUS,
+                        ServiceEntitlement.APP_VOWIFI, Ts43VowifiStatus.ProvStatus.NOT_REQUIRED))
+                .setVowifiServiceFlowUrl(
+                        doc.getOrDefault(
+                                ResponseXmlNode.APPLICATION,
+                                ResponseXmlAttributes.SERVER_FLOW_URL,
+                                ServiceEntitlement.APP_VOWIFI,
+                                null))
+                .setVowifiServiceFlowUserData(
+                        doc.getOrDefault(
+                                ResponseXmlNode.APPLICATION,
+                                ResponseXmlAttributes.SERVER_FLOW_USER_DATA,
+                                ServiceEntitlement.APP_VOWIFI,
+                                null))
+                .setSmsOverIpStatus(parseInt(
+                        doc, ResponseXmlNode.APPLICATION, ResponseXmlAttributes.ENTITLEMENT_STATUS,
+                        ServiceEntitlement.APP_SMSOIP, INCOMPATIBLE_STATE))
+                .build();
+    }
+
+    private static int parseInt(
+            XmlDoc doc, String node, String key, @Nullable String appId, int defaultValue) {
+        String value = doc.getOrDefault(node, key, appId, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static long parseLong(XmlDoc doc, String node, String key, long defaultValue) {
+        String value = doc.getOrDefault(node, key, null, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    static Builder builder() {
+        return new AutoValue_EntitlementSnapshot.Builder()
+                .setVersion(DEFAULT_VERSION)
+                .setVersValidity(DEFAULT_VALIDITY)
+                .setToken(null)
+                .setTokenValidity(DEFAULT_VALIDITY)
+                .setVolteStatus(INCOMPATIBLE_STATE)
+                .setVowifiStatus(INCOMPATIBLE_STATE)
+                .setVowifiTcStatus(Ts43VowifiStatus.TcStatus.NOT_REQUIRED)
+                .setVowifiAddrStatus(Ts43VowifiStatus.AddrStatus.NOT_REQUIRED)
+                .setVowifiProvStatus(Ts43VowifiStatus.ProvStatus.NOT_REQUIRED)
+                .setVowifiServiceFlowUrl(null)
+                .setVowifiServiceFlowUserData(null)
+                .setSmsOverIpStatus(INCOMPATIBLE_STATE);
+    }
+
+    /** Builder of {@link EntitlementSnapshot}. */
+    @AutoValue.Builder
+    abstract static class Builder {
+        abstract EntitlementSnapshot build();
+        abstract Builder setVersion(int version);
+        abstract Builder setVersValidity(long versValidity);
+        abstract Builder setToken(@Nullable String token);
+        abstract Builder setTokenValidity(long tokenValidity);
+        abstract Builder setVolteStatus(int volteStatus);
+        abstract Builder setVowifiStatus(int vowifiStatus);
+        abstract Builder setVowifiTcStatus(int vowifiTcStatus);
+        abstract Builder setVowifiAddrStatus(int vowifiAddrStatus);
+        abstract Builder setVowifiProvStatus(int vowifiProvStatus);
+        abstract Builder setVowifiServiceFlowUrl(@Nullable String vowifiServiceFlowUrl);
+        abstract Builder setVowifiServiceFlowUserData(@Nullable String vowifiServiceFlowUserData);
+        abstract Builder setSmsOverIpStatus(int smsOverIpStatus);
+    }
+
+    @Override
+    public final String toString() {
+        return "EntitlementSnapshot {"
+                + "version=" + version()
+                + ",versValidity=" + versValidity()
+                + ",tokenValidity=" + tokenValidity()
+                + ",volteStatus=" + volteStatus()
+                + ",vowifiStatus=" + vowifiStatus()
+                + ",vowifiTcStatus=" + vowifiTcStatus()
+                + ",vowifiAddrStatus=" + vowifiAddrStatus()
+                + ",vowifiProvStatus=" + vowifiProvStatus()
+                + ",smsOverIpStatus=" + smsOverIpStatus()
+                + "}";
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.fcm;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Merges the entitlement change pushes of a subscription received within a short window, so a
+ * burst of pushes results in one entitlement query at the end of the window.
+ */
+final class FcmPushCoalescer {
+    private static final String TAG = "IMSSE-FcmPushCoalescer";
+
+    @VisibleForTesting
+    static final Duration COALESCING_WINDOW = Duration.ofSeconds(10);
+
+    // The push timestamp is from the server clock while the document time is from the device
+    // clock; a push is stale only if it's older than the document by more than the clock skew.
+    @VisibleForTesting
+    static final Duration CLOCK_SKEW_MARGIN = Duration.ofMinutes(5);
+
+    // The end of the current window of each subscription.
+    @GuardedBy("FcmPushCoalescer.class")
+    private static final SparseArray<Instant> sWindowEnds = new SparseArray<>();
+
+    @VisibleForTesting
+    static Clock sClock = Clock.systemUTC();
+
+    private FcmPushCoalescer() {}
+
+    /**
+     * Merges a push of {@code subId} into the current window.
+     *
+     * @return the delay of the query for the merged pushes if it's the first push of a window;
+     *     {@code null} if the query is already scheduled by a previous push.
+     */
+    @Nullable
+    static synchronized Duration merge(int subId) {
+        Instant now = Instant.now(sClock);
+        removeExpiredWindows(now);
+        if (sWindowEnds.get(subId) != null) {
+            Log.d(TAG, "Merged push, subId=" + subId);
+            return null;
+        }
+        sWindowEnds.put(subId, now.plus(COALESCING_WINDOW));
+        Log.d(TAG, "New push window, subId=" + subId);
+        return COALESCING_WINDOW;
+    }
+
+    @GuardedBy("FcmPushCoalescer.class")
+    private static void removeExpiredWindows(Instant now) {
+        for (int i = sWindowEnds.size() - 1; i >= 0; i--) {
+            if (!now.isBefore(sWindowEnds.valueAt(i))) {
+                sWindowEnds.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if a push sent at {@code timestamp} is older than the entitlement
+     * document received at {@code documentTimeMillis}, i.e. the change is applied already.
+     */
+    static boolean isStale(@Nullable Instant timestamp, long documentTimeMillis) {
+        return timestamp != null
+                && documentTimeMillis > 0
+                && timestamp.plus(CLOCK_SKEW_MARGIN).toEpochMilli() < documentTimeMillis;
+    }
+
+    @VisibleForTesting
+    static synchronized void clear() {
+        sWindowEnds.clear();
+    }
+}
@@ -22,6 +22,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.os.AsyncTask;
 import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import androidx.annotation.VisibleForTesting;
@@ -29,19 +30,34 @@ import androidx.annotation.VisibleForTesting;
 import com.android.imsserviceentitlement.R;
 import com.android.imsserviceentitlement.job.JobManager;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
+import com.android.imsserviceentitlement.utils.WriteCoalescer;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
 import com.google.firebase.iid.FirebaseInstanceId;
 import com.google.firebase.messaging.FirebaseMessaging;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** A {@link JobService} that gets a FCM tokens for all active SIMs. */
 public class FcmRegistrationService extends JobService {
     private static final String TAG = "IMSSE-FcmRegistrationService";
 
+    // One thread per SIM slot is enough, as the subscriptions of a sender share one fetch.
+    private static final int MAX_CONCURRENT_TOKEN_FETCHES = 2;
+    private static final long TOKEN_FETCH_THREAD_KEEP_ALIVE_SECONDS = 30L;
+    private static final Executor TOKEN_FETCH_EXECUTOR = newTokenFetchExecutor();
+
     private FirebaseInstanceId mFakeInstanceID = null;
     private FirebaseApp mApp = null;
 
@@ -58,6 +74,17 @@ public class FcmRegistrationService extends JobService {
         jobManager.registerFcmOnceNetworkReady();
     }
 
+    private static ThreadPoolExecutor newTokenFetchExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_TOKEN_FETCHES,
+                MAX_CONCURRENT_TOKEN_FETCHES,
+                TOKEN_FETCH_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     @VisibleForTesting
     void setFakeInstanceID(FirebaseInstanceId instanceID) {
         mFakeInstanceID = instanceID;
@@ -109,6 +136,8 @@ public class FcmRegistrationService extends JobService {
     /**
      * Registers to receive FCM messages published to subscribe topics under the retrieved token.
      * The token changes when the InstanceID becomes invalid (e.g. app data is deleted).
+     *
+     * <p>The tokens are fetched concurrently, once per sender ID shared by the subscriptions.
      */
     protected void onHandleWork(JobParameters params) {
         ImmutableSet<Integer> subIds = TelephonyUtils.getSubIdsWithFcmSupported(this);
@@ -117,26 +146,60 @@ public class FcmRegistrationService extends JobService {
             return;
         }
 
-        boolean wantsReschedule = false;
+        ArrayMap<String, List<Integer>> subIdsBySenderId = new ArrayMap<>();
         for (int subId : subIds) {
-            if (!updateFcmToken(getFirebaseInstanceId(), subId)) {
-                wantsReschedule = true;
+            String senderId = TelephonyUtils.getFcmSenderId(this, subId);
+            List<Integer> subIdsOfSender = subIdsBySenderId.get(senderId);
+            if (subIdsOfSender == null) {
+                subIdsOfSender = new ArrayList<>();
+                subIdsBySenderId.put(senderId, subIdsOfSender);
             }
+            subIdsOfSender.add(subId);
         }
 
+        FirebaseInstanceId instanceID = getFirebaseInstanceId();
+        List<ListenableFuture<Boolean>> updates = new ArrayList<>();
+        for (int i = 0; i < subIdsBySenderId.size(); i++) {
+            String senderId = subIdsBySenderId.keyAt(i);
+            List<Integer> subIdsOfSender = subIdsBySenderId.valueAt(i);
+            updates.add(Futures.submit(
+                    () -> updateFcmToken(instanceID, senderId, subIdsOfSender),
+                    TOKEN_FETCH_EXECUTOR));
+        }
+
+        boolean wantsReschedule = false;
+        try {
+            for (boolean updated : Futures.allAsList(updates).get()) {
+                if (!updated) {
+                    wantsReschedule = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while updating FCM tokens.");
+            Thread.currentThread().interrupt();
+            wantsReschedule = true;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to update FCM tokens: " + e);
+            wantsReschedule = true;
+        }
+
+        WriteCoalescer.awaitDurable();
         jobFinished(params, wantsReschedule);
     }
 
     /** Returns {@code false} if failed to get token. */
-    private boolean updateFcmToken(FirebaseInstanceId instanceID, int subId) {
-        Log.d(TAG, "FcmRegistrationService.updateFcmToken: subId=" + subId);
-        String token = getTokenForSubId(instanceID, subId);
+    private boolean updateFcmToken(
+            FirebaseInstanceId instanceID, String senderId, List<Integer> subIds) {
+        Log.d(TAG, "FcmRegistrationService.updateFcmToken: subIds=" + subIds);
+        String token = getToken(instanceID, senderId);
         if (token == null) {
             Log.d(TAG, "getToken null");
             return false;
         }
-        Log.d(TAG, "FCM token: " + token + " subId: " + subId);
-        FcmTokenStore.setToken(this, subId, token);
+        for (int subId : subIds) {
+            Log.d(TAG, "FCM token: " + token + " subId: " + subId);
+            FcmTokenStore.setToken(this, subId, token);
+        }
         return true;
     }
 
@@ -146,12 +209,10 @@ public class FcmRegistrationService extends JobService {
                 : FirebaseInstanceId.getInstance(getFirebaseApp());
     }
 
-    private String getTokenForSubId(FirebaseInstanceId instanceID, int subId) {
+    private static String getToken(FirebaseInstanceId instanceID, String senderId) {
         String token = null;
         try {
-            token = instanceID.getToken(
-                    TelephonyUtils.getFcmSenderId(this, subId),
-                    FirebaseMessaging.INSTANCE_ID_SCOPE);
+            token = instanceID.getToken(senderId, FirebaseMessaging.INSTANCE_ID_SCOPE);
         } catch (IOException e) {
             Log.e(TAG, "Failed to get a new FCM token: " + e);
         }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.fcm;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+
+/**
+ * Index from FCM sender ID to the active subscriptions configured with it, so a push is
+ * dispatched without reading the carrier config of every subscription.
+ *
+ * <p>The index is built from the carrier configs on first use, and has to be invalidated on
+ * {@link android.telephony.CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED}, which is also
+ * broadcast on SIM change.
+ */
+public final class FcmSenderIdIndex {
+    private static final String TAG = "IMSSE-FcmSenderIdIndex";
+
+    @GuardedBy("FcmSenderIdIndex.class")
+    @Nullable
+    private static ImmutableSetMultimap<String, Integer> sSubIdsBySenderId;
+
+    // Increased on invalidation, so a build started before it is not kept.
+    @GuardedBy("FcmSenderIdIndex.class")
+    private static int sGeneration;
+
+    private FcmSenderIdIndex() {}
+
+    /** Returns the active subscriptions with FCM sender ID {@code senderId}. */
+    @WorkerThread
+    public static ImmutableSet<Integer> getSubIds(Context context, String senderId) {
+        ImmutableSetMultimap<String, Integer> index;
+        int generation;
+        synchronized (FcmSenderIdIndex.class) {
+            index = sSubIdsBySenderId;
+            generation = sGeneration;
+        }
+        if (index == null) {
+            index = build(context);
+            synchronized (FcmSenderIdIndex.class) {
+                if (generation == sGeneration) {
+                    sSubIdsBySenderId = index;
+                }
+            }
+        }
+        return index.get(senderId);
+    }
+
+    /** Builds the index again with the current carrier configs. */
+    @WorkerThread
+    public static void rebuild(Context context) {
+        int generation;
+        synchronized (FcmSenderIdIndex.class) {
+            generation = ++sGeneration;
+        }
+        ImmutableSetMultimap<String, Integer> index = build(context);
+        synchronized (FcmSenderIdIndex.class) {
+            if (generation == sGeneration) {
+                sSubIdsBySenderId = index;
+            }
+        }
+    }
+
+    /** Drops the index, so it's built again with the current carrier configs on next use. */
+    public static synchronized void invalidate() {
+        sSubIdsBySenderId = null;
+        sGeneration++;
+    }
+
+    private static ImmutableSetMultimap<String, Integer> build(Context context) {
+        ImmutableSetMultimap.Builder<String, Integer> builder = ImmutableSetMultimap.builder();
+        for (int subId : TelephonyUtils.getSubIdsWithFcmSupported(context)) {
+            builder.put(TelephonyUtils.getFcmSenderId(context, subId), subId);
+        }
+        ImmutableSetMultimap<String, Integer> index = builder.build();
+        Log.d(TAG, "Index built: " + index);
+        return index;
+    }
+}
@@ -20,15 +20,22 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.android.imsserviceentitlement.ImsEntitlementPollingService;
+import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
+import com.android.imsserviceentitlement.entitlement.EntitlementResultCache;
 import com.android.imsserviceentitlement.job.JobManager;
-import com.android.imsserviceentitlement.utils.TelephonyUtils;
 import com.android.libraries.entitlement.ServiceEntitlement;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.firebase.messaging.FirebaseMessagingService;
 import com.google.firebase.messaging.RemoteMessage;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.Map;
 
 /** Service for handling Firebase Cloud Messaging.*/
@@ -82,7 +89,19 @@ public class FcmService extends FirebaseMessagingService {
         }
         // A corner case: a FCM received after SIM is removed, and SIM inserted back later.
         // We missed the FCM in this case.
-        scheduleEntitlementStatusCheckForSubIdAssociatedWithSenderId(fcmSenderId);
+        scheduleEntitlementStatusCheckForSubIdAssociatedWithSenderId(
+                fcmSenderId, parseTimestamp(fcmData.get(DATA_TIMESTAMP_KEY)));
+    }
+
+    /** Returns the instant of the "timestamp" value; {@code null} if malformed. */
+    @Nullable
+    private static Instant parseTimestamp(String timestamp) {
+        try {
+            return OffsetDateTime.parse(timestamp).toInstant();
+        } catch (DateTimeParseException e) {
+            Log.w(TAG, "Unable to parse timestamp: " + timestamp);
+            return null;
+        }
     }
 
     private static boolean isTs43EntitlementsChangeEvent(Map<String, String> dataMap) {
@@ -123,13 +142,24 @@ public class FcmService extends FirebaseMessagingService {
                         subId);
     }
 
-    private void scheduleEntitlementStatusCheckForSubIdAssociatedWithSenderId(String msgSenderId) {
-        for (int subId : TelephonyUtils.getSubIdsWithFcmSupported(this)) {
-            String configSenderId = TelephonyUtils.getFcmSenderId(this, subId);
-            if (msgSenderId.equals(configSenderId)) {
-                Log.d(TAG, "check entitlement status for subscription id(" + subId + ")");
-                getJobManager(subId).queryEntitlementStatusOnceNetworkReady();
+    private void scheduleEntitlementStatusCheckForSubIdAssociatedWithSenderId(
+            String msgSenderId, @Nullable Instant timestamp) {
+        for (int subId : FcmSenderIdIndex.getSubIds(this, msgSenderId)) {
+            long documentTimeMillis =
+                    new EntitlementConfiguration(this, subId).getDocumentTimeMillis();
+            if (FcmPushCoalescer.isStale(timestamp, documentTimeMillis)) {
+                Log.d(TAG, "Ignore push older than the last query, subId=" + subId);
+                continue;
+            }
+            // The entitlement changed, so a recent result is not reused.
+            EntitlementResultCache.invalidate(subId);
+            Duration delay = FcmPushCoalescer.merge(subId);
+            if (delay == null) {
+                continue;
             }
+            Log.d(TAG, "check entitlement status for subscription id(" + subId + ")");
+            getJobManager(subId).queryEntitlementStatusOnceNetworkReady(
+                    /* retryCount= */ 0, delay);
         }
     }
 }
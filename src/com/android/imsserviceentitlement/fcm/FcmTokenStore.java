@@ -18,11 +18,17 @@ package com.android.imsserviceentitlement.fcm;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 
-import androidx.annotation.WorkerThread;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.imsserviceentitlement.utils.WriteCoalescer;
+
+import com.google.common.collect.ImmutableList;
 
 /** Stores FCM token. */
 public final class FcmTokenStore {
@@ -31,11 +37,31 @@ public final class FcmTokenStore {
     private static final String FCM_TOKEN_FILE = "FCM_TOKEN";
     private static final String FCM_TOKEN_KEY = "FCM_TOKEN_SUB_";
 
+    // The tokens read from or written to FCM_TOKEN_FILE, by subscription id. An empty token means
+    // no token stored.
+    @GuardedBy("FcmTokenStore.class")
+    private static final SparseArray<String> sTokens = new SparseArray<>();
+
+    @GuardedBy("FcmTokenStore.class")
+    private static final SparseArray<ArraySet<TokenUpdateListener>> sListeners =
+            new SparseArray<>();
+
+    /** The listener for the FCM token update of a subscription. */
+    public interface TokenUpdateListener {
+        /** Called on the thread updating the token, with the new {@code token} of {@code subId}. */
+        void onTokenUpdated(int subId, String token);
+    }
+
     private FcmTokenStore() {}
 
     /** Returns FCM token or empty string if not available. */
-    public static String getToken(Context context, int subId) {
-        return getFcmTokenFile(context).getString(FCM_TOKEN_KEY + subId, "");
+    public static synchronized String getToken(Context context, int subId) {
+        String token = sTokens.get(subId);
+        if (token == null) {
+            token = getFcmTokenFile(context).getString(FCM_TOKEN_KEY + subId, "");
+            sTokens.put(subId, token);
+        }
+        return token;
     }
 
     /** Returns {@code true} if FCM token available. */
@@ -43,38 +69,62 @@ public final class FcmTokenStore {
         return !TextUtils.isEmpty(getToken(context, subId));
     }
 
-    /** Saves the FCM token into data store. */
-    @WorkerThread
-    public static boolean setToken(Context context, int subId, String token) {
-        if (!TextUtils.isEmpty(token)) {
-            return getFcmTokenFile(context)
-                    .edit()
-                    .putString(FCM_TOKEN_KEY + subId, token)
-                    .commit();
-        } else {
-            return getFcmTokenFile(context)
-                    .edit()
-                    .remove(FCM_TOKEN_KEY + subId)
-                    .commit();
+    /**
+     * Saves the FCM token into data store. The token is readable once returned, and written to
+     * disk by {@link WriteCoalescer}. The listeners of {@code subId} are notified if it's changed.
+     */
+    public static void setToken(Context context, int subId, String token) {
+        String newToken = TextUtils.isEmpty(token) ? "" : token;
+        ImmutableList<TokenUpdateListener> listeners;
+        synchronized (FcmTokenStore.class) {
+            if (newToken.equals(sTokens.get(subId))) {
+                return;
+            }
+            sTokens.put(subId, newToken);
+            SharedPreferences fcmTokenFile = getFcmTokenFile(context);
+            if (!newToken.isEmpty()) {
+                fcmTokenFile.edit().putString(FCM_TOKEN_KEY + subId, newToken).apply();
+            } else {
+                fcmTokenFile.edit().remove(FCM_TOKEN_KEY + subId).apply();
+            }
+            WriteCoalescer.enqueueSync(FCM_TOKEN_FILE, fcmTokenFile);
+            ArraySet<TokenUpdateListener> registered = sListeners.get(subId);
+            listeners = registered == null
+                    ? ImmutableList.of()
+                    : ImmutableList.copyOf(registered);
+        }
+        // Notifies outside the lock, so the listeners can read the token or unregister.
+        for (TokenUpdateListener listener : listeners) {
+            listener.onTokenUpdated(subId, newToken);
+        }
+    }
+
+    /** Registers a listener for FCM token update of {@code subId}. */
+    public static synchronized void registerTokenUpdateListener(
+            int subId, TokenUpdateListener listener) {
+        Log.d(TAG, "registerTokenUpdateListener, subId=" + subId);
+        ArraySet<TokenUpdateListener> listeners = sListeners.get(subId);
+        if (listeners == null) {
+            listeners = new ArraySet<>();
+            sListeners.put(subId, listeners);
         }
+        listeners.add(listener);
     }
 
-    /** Registers a listener for FCM token update. */
-    public static void registerTokenUpdateListener(
-            Context context, OnSharedPreferenceChangeListener listener) {
-        Log.d(TAG, "registerTokenUpdateListener");
-        // Since FCM_TOKEN_FILE only contains one item FCM_TOKEN_KEY, a change to FCM_TOKEN_FILE
-        // means a change to FCM_TOKEN_KEY. The listener can ignore its arguments.
-        getFcmTokenFile(context).registerOnSharedPreferenceChangeListener(listener);
+    /** Unregisters a listener for FCM token update of {@code subId}. */
+    public static synchronized void unregisterTokenUpdateListener(
+            int subId, TokenUpdateListener listener) {
+        Log.d(TAG, "unregisterTokenUpdateListener, subId=" + subId);
+        ArraySet<TokenUpdateListener> listeners = sListeners.get(subId);
+        if (listeners != null && listeners.remove(listener) && listeners.isEmpty()) {
+            sListeners.remove(subId);
+        }
     }
 
-    /** Unregisters a listener for FCM token update. */
-    public static void unregisterTokenUpdateListener(
-            Context context, OnSharedPreferenceChangeListener listener) {
-        Log.d(TAG, "unregisterTokenUpdateListener");
-        // Since FCM_TOKEN_FILE only contains one item FCM_TOKEN_KEY, a change to FCM_TOKEN_FILE
-        // means a change to FCM_TOKEN_KEY. The listener can ignore its arguments.
-        getFcmTokenFile(context).unregisterOnSharedPreferenceChangeListener(listener);
+    /** Drops the tokens in memory, so they are read from the preference again. */
+    @VisibleForTesting
+    static synchronized void clearCache() {
+        sTokens.clear();
     }
 
     private static SharedPreferences getFcmTokenFile(Context context) {
@@ -16,58 +16,100 @@
 
 package com.android.imsserviceentitlement.fcm;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
-
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
+
+import androidx.annotation.GuardedBy;
 
-import androidx.annotation.WorkerThread;
+import com.android.imsserviceentitlement.ImsEntitlementPollingService;
+import com.android.imsserviceentitlement.fcm.FcmTokenStore.TokenUpdateListener;
+import com.android.imsserviceentitlement.job.JobManager;
+import com.android.imsserviceentitlement.utils.Executors;
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
 
-import java.util.concurrent.CountDownLatch;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 /** Convenience methods for FCM. */
 public final class FcmUtils {
     public static final String LOG_TAG = "IMSSE-FcmUtils";
 
-    private static final long TOKEN_UPDATE_WAITING_SECONDS = 25L;
+    // The token requests of each subscription waiting for FcmRegistrationService.
+    @GuardedBy("FcmUtils.class")
+    private static final SparseArray<SettableFuture<String>> sPendingTokens = new SparseArray<>();
+
+    private static final TokenUpdateListener TOKEN_UPDATE_LISTENER = FcmUtils::onTokenUpdated;
 
     private FcmUtils() {}
 
-    /** Fetches FCM token, if it's not available via {@link FcmTokenStore#getToken}. */
-    @WorkerThread
-    public static void fetchFcmToken(Context context, int subId) {
+    /**
+     * Returns the FCM token of {@code subId}. The future is done already if the token is available
+     * via {@link FcmTokenStore#getToken}, or with an empty token if FCM is not configured for
+     * {@code subId}; otherwise it's done once the token is updated by {@link
+     * FcmRegistrationService}, which retries until it gets one. Never blocks.
+     *
+     * <p>As the entitlement status is queried without the pending token, it's queried again once
+     * the token is updated, only once however many callers requested it.
+     */
+    public static ListenableFuture<String> fetchFcmTokenAsync(Context context, int subId) {
         if (FcmTokenStore.hasToken(context, subId)) {
             Log.d(LOG_TAG, "FCM token available.");
-            return;
+            return Futures.immediateFuture(FcmTokenStore.getToken(context, subId));
+        }
+        if (TelephonyUtils.getFcmSenderId(context, subId).isEmpty()) {
+            // FcmRegistrationService never gets a token without FCM sender ID.
+            return Futures.immediateFuture("");
         }
 
         Log.d(LOG_TAG, "FCM token unavailable. Try to update...");
-        final CountDownLatch tokenUpdated = new CountDownLatch(1);
-        final SharedPreferences.OnSharedPreferenceChangeListener listener =
-                (s, k) -> {
-                    Log.d(LOG_TAG, "FCM preference changed.");
-                    if (FcmTokenStore.hasToken(context, subId)) {
-                        tokenUpdated.countDown();
-                    }
-                };
-        FcmTokenStore.registerTokenUpdateListener(context, listener);
+        SettableFuture<String> pendingToken;
+        synchronized (FcmUtils.class) {
+            pendingToken = sPendingTokens.get(subId);
+            if (pendingToken == null) {
+                pendingToken = SettableFuture.create();
+                // Not to keep the context of the caller, e.g. an activity, until then.
+                Context appContext = context.getApplicationContext();
+                pendingToken.addListener(
+                        () -> queryEntitlementStatusOnceNetworkReady(appContext, subId),
+                        Executors.getDirectExecutor());
+                sPendingTokens.put(subId, pendingToken);
+                FcmTokenStore.registerTokenUpdateListener(subId, TOKEN_UPDATE_LISTENER);
+            }
+        }
+        // The token could be updated before the listener registered.
+        onTokenUpdated(subId, FcmTokenStore.getToken(context, subId));
 
-        // Starts a JobIntentService to update FCM token by calling FCM API on a worker thread.
-        FcmRegistrationService.enqueueJob(context);
+        if (!pendingToken.isDone()) {
+            // Starts a JobService to update FCM token by calling FCM API on a worker thread.
+            FcmRegistrationService.enqueueJob(context);
+        }
+        return pendingToken;
+    }
 
-        try {
-            // Wait for 25s. If FCM token update failed/timeout, we will let user see
-            // the error message returned by server. Then user can manually retry.
-            if (tokenUpdated.await(TOKEN_UPDATE_WAITING_SECONDS, SECONDS)) {
-                Log.d(LOG_TAG, "FCM token updated.");
-            } else {
-                Log.d(LOG_TAG, "FCM token update failed.");
+    private static void onTokenUpdated(int subId, String token) {
+        if (TextUtils.isEmpty(token)) {
+            return;
+        }
+        SettableFuture<String> pendingToken;
+        synchronized (FcmUtils.class) {
+            pendingToken = sPendingTokens.get(subId);
+            if (pendingToken == null) {
+                return;
             }
-        } catch (InterruptedException e) {
-            // Do nothing
-            Log.d(LOG_TAG, "FCM token update interrupted.");
+            sPendingTokens.remove(subId);
+            FcmTokenStore.unregisterTokenUpdateListener(subId, TOKEN_UPDATE_LISTENER);
         }
-        FcmTokenStore.unregisterTokenUpdateListener(context, listener);
+        Log.d(LOG_TAG, "FCM token updated, subId=" + subId);
+        // Completes outside the lock, as the listeners of the future run on this thread.
+        pendingToken.set(token);
+    }
+
+    private static void queryEntitlementStatusOnceNetworkReady(Context context, int subId) {
+        Log.d(LOG_TAG, "FCM token available, query entitlement status again. subId=" + subId);
+        JobManager.getInstance(context, ImsEntitlementPollingService.COMPONENT_NAME, subId)
+                .queryEntitlementStatusOnceNetworkReady();
     }
 }
@@ -22,15 +22,21 @@ import android.app.job.JobScheduler;
 import android.content.ComponentName;
 import android.content.Context;
 import android.os.PersistableBundle;
+import android.provider.Settings;
 import android.telephony.SubscriptionManager;
 import android.util.ArrayMap;
 import android.util.Log;
 
 import androidx.annotation.GuardedBy;
+import androidx.annotation.VisibleForTesting;
 
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
 
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Random;
 
 /** Manages all scheduled jobs and provides common job scheduler. */
 public class JobManager {
@@ -46,6 +52,14 @@ public class JobManager {
     public static final String EXTRA_SLOT_ID = "SLOT_ID";
     public static final String EXTRA_RETRY_COUNT = "RETRY_COUNT";
 
+    // The retry policy of failed entitlement status queries.
+    private static final int MAX_RETRY_COUNT = 6;
+    private static final Duration RETRY_BASE_DELAY = Duration.ofSeconds(30);
+    private static final Duration RETRY_MAX_DELAY = Duration.ofHours(1);
+
+    @VisibleForTesting
+    static Random sRandom = new Random();
+
     private final Context mContext;
     private final int mSubId;
     private final JobScheduler mJobScheduler;
@@ -140,6 +154,78 @@ public class JobManager {
         mJobScheduler.schedule(job);
     }
 
+    /**
+     * Checks Entitlement Status once has network connection before the entitlement expires after
+     * {@code validity}. The query is moved earlier by a per-device amount up to the carrier
+     * configured percentage of {@code validity}, so devices provisioned at the same time don't
+     * query at the same time.
+     */
+    public void queryEntitlementStatusBeforeValidityExpiry(Duration validity) {
+        String deviceId = Settings.Secure.getString(
+                mContext.getContentResolver(), Settings.Secure.ANDROID_ID);
+        Duration jitter = getValidityJitter(
+                deviceId == null ? "" : deviceId,
+                mSubId,
+                validity,
+                TelephonyUtils.getVersValidityJitterPercent(mContext, mSubId));
+        queryEntitlementStatusOnceNetworkReady(/* retryCount= */ 0, validity.minus(jitter));
+    }
+
+    /**
+     * Returns the amount of {@code validity} to move the query earlier, up to {@code jitterPercent}
+     * of it. It's derived from the hash of {@code deviceId} and {@code subId}, so stays the same
+     * for the device across queries and restarts.
+     */
+    @VisibleForTesting
+    static Duration getValidityJitter(
+            String deviceId, int subId, Duration validity, int jitterPercent) {
+        long maxJitterMillis = validity.toMillis() / 100 * jitterPercent;
+        if (maxJitterMillis <= 0) {
+            return Duration.ZERO;
+        }
+        long hash = Hashing.sha256().newHasher()
+                .putString(deviceId, StandardCharsets.UTF_8)
+                .putInt(subId)
+                .hash()
+                .asLong();
+        return Duration.ofMillis(Math.floorMod(hash, maxJitterMillis + 1));
+    }
+
+    /**
+     * Checks Entitlement Status again after a failed query, which was the {@code retryCount}-th
+     * retry, once has network connection. The delay grows exponentially with {@code retryCount}
+     * and is picked at random up to that, but not shorter than {@code retryAfter} asked by the
+     * server.
+     *
+     * @return {@code false} if the retry budget of this subscription ran out and nothing is
+     *     scheduled.
+     */
+    public boolean retryQueryEntitlementStatusOnceNetworkReady(
+            int retryCount, Duration retryAfter) {
+        if (retryCount >= MAX_RETRY_COUNT) {
+            Log.d(TAG, "Retry budget ran out, retryCount=" + retryCount);
+            return false;
+        }
+        queryEntitlementStatusOnceNetworkReady(
+                retryCount + 1, getRetryDelay(retryCount, retryAfter, sRandom));
+        return true;
+    }
+
+    /**
+     * Returns the delay of the retry after {@code retryCount} retries: a random duration up to
+     * {@code RETRY_BASE_DELAY * 2^retryCount}, capped by {@code RETRY_MAX_DELAY}, with the {@code
+     * retryAfter} as floor. The full jitter spreads the retries of devices failed at the same time.
+     */
+    @VisibleForTesting
+    static Duration getRetryDelay(int retryCount, Duration retryAfter, Random random) {
+        // The shift is bounded to not overflow, the ceiling is capped by RETRY_MAX_DELAY anyway.
+        long ceilingMillis = Math.min(
+                RETRY_BASE_DELAY.toMillis() << Math.min(retryCount, 16),
+                RETRY_MAX_DELAY.toMillis());
+        Duration delay = Duration.ofMillis((long) (random.nextDouble() * ceilingMillis));
+        return delay.compareTo(retryAfter) < 0 ? retryAfter : delay;
+    }
+
     /** Registers FCM service to listen push notification once has network connection. */
     public void registerFcmOnceNetworkReady() {
         Log.d(TAG, "Schedule REGISTER_FCM_JOB_ID once has network connection.");
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * A {@link Reader} over a XML string which escapes the bare "&" on the fly while the parser reads.
+ * An "&amp;" is passed through as is and any other "&" is read as "&amp;", so the string is not
+ * copied before parsing.
+ */
+final class AmpersandEscapingReader extends Reader {
+    private static final String AMP_ENTITY_SUFFIX = "amp;";
+
+    private final String mContent;
+    private int mPosition;
+    // Index in AMP_ENTITY_SUFFIX of the next char to read for a escaped "&"; -1 if none pending.
+    private int mSuffixPosition = -1;
+
+    private AmpersandEscapingReader(String content) {
+        mContent = content;
+    }
+
+    /**
+     * Returns a {@link Reader} of the {@code content} with the bare "&" escaped. Returns a plain
+     * {@link StringReader} if there is no bare "&" in the {@code content}.
+     */
+    static Reader of(String content) {
+        return hasBareAmpersand(content)
+                ? new AmpersandEscapingReader(content)
+                : new StringReader(content);
+    }
+
+    private static boolean hasBareAmpersand(String content) {
+        for (int i = content.indexOf('&'); i >= 0; i = content.indexOf('&', i + 1)) {
+            if (!content.startsWith(AMP_ENTITY_SUFFIX, i + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int count = 0;
+        while (count < length) {
+            if (mSuffixPosition >= 0) {
+                buffer[offset + count++] = AMP_ENTITY_SUFFIX.charAt(mSuffixPosition++);
+                if (mSuffixPosition == AMP_ENTITY_SUFFIX.length()) {
+                    mSuffixPosition = -1;
+                }
+                continue;
+            }
+            if (mPosition >= mContent.length()) {
+                break;
+            }
+            char c = mContent.charAt(mPosition++);
+            buffer[offset + count++] = c;
+            if (c == '&' && !mContent.startsWith(AMP_ENTITY_SUFFIX, mPosition)) {
+                mSuffixPosition = 0;
+            }
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() {}
+}
@@ -19,9 +19,11 @@ package com.android.imsserviceentitlement.utils;
 import android.content.Context;
 import android.os.AsyncTask;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.ims.ImsMmTelManager;
 import android.telephony.ims.ProvisioningManager;
+import android.telephony.ims.stub.ImsConfigImplBase;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -29,6 +31,10 @@ import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.Optional;
 
 /** A helper class for IMS relevant APIs with subscription id. */
 public class ImsUtils {
@@ -43,21 +49,24 @@ public class ImsUtils {
      * Value is in Integer format. ON (1), OFF(0).
      * Key is from {@link ProvisioningManager#KEY_VOLTE_PROVISIONING_STATUS}.
      */
-    private static final int KEY_VOLTE_PROVISIONING_STATUS = 10;
+    public static final int KEY_VOLTE_PROVISIONING_STATUS = 10;
 
     /**
      * Turns SMS over IP ON/OFF on the device.
      * Value is in Integer format. ON (1), OFF(0).
      * Key is from {@link ProvisioningManager#KEY_SMS_OVER_IP_ENABLED}.
      */
-    private static final int KEY_SMS_OVER_IP_ENABLED = 14;
+    public static final int KEY_SMS_OVER_IP_ENABLED = 14;
 
     /**
      * Enable voice over wifi on device.
      * Value is in Integer format. Enabled (1), or Disabled (0).
      * Key is from {@link ProvisioningManager#KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE}.
      */
-    private static final int KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE = 28;
+    public static final int KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE = 28;
+
+    /** The latency of a call into the IMS service, beyond which it is logged as slow. */
+    private static final long SLOW_CALL_MILLIS = 500;
 
     // Cache subscription id associated {@link ImsUtils} objects for reusing.
     @GuardedBy("ImsUtils.class")
@@ -102,42 +111,69 @@ public class ImsUtils {
         }
     }
 
-    /** Sets whether VoWiFi is provisioned. */
-    public void setVowifiProvisioned(boolean value) {
-        try {
-            mProvisioningManager.setProvisioningIntValue(
-                    KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, value
-                            ? ProvisioningManager.PROVISIONING_VALUE_ENABLED
-                            : ProvisioningManager.PROVISIONING_VALUE_DISABLED);
-        } catch (RuntimeException e) {
-            // ignore this exception, possible exception should be NullPointerException or
-            // RemoteException.
+    /**
+     * Sets whether the features are provisioned, in one pass over {@code values} which maps a
+     * provisioning key to its value. Returns whether each key is set; a failed key does not stop
+     * the others. The latency of each call is logged.
+     */
+    public Map<Integer, Boolean> setProvisioned(Map<Integer, Boolean> values) {
+        ImmutableMap.Builder<Integer, Boolean> builder = ImmutableMap.builder();
+        long startTime = SystemClock.elapsedRealtime();
+        for (Map.Entry<Integer, Boolean> entry : values.entrySet()) {
+            int key = entry.getKey();
+            long callStartTime = SystemClock.elapsedRealtime();
+            boolean success;
+            try {
+                int result = mProvisioningManager.setProvisioningIntValue(
+                        key, entry.getValue()
+                                ? ProvisioningManager.PROVISIONING_VALUE_ENABLED
+                                : ProvisioningManager.PROVISIONING_VALUE_DISABLED);
+                success = result == ImsConfigImplBase.CONFIG_RESULT_SUCCESS;
+                if (!success) {
+                    Log.e(TAG, "Failed to set provisioning key " + key + ", result=" + result);
+                }
+            } catch (RuntimeException e) {
+                // Possible exception should be NullPointerException or RemoteException.
+                Log.e(TAG, "Failed to set provisioning key " + key + ". " + e);
+                success = false;
+            }
+            logLatency("setProvisioningIntValue key=" + key + " success=" + success, callStartTime);
+            builder.put(key, success);
         }
+        ImmutableMap<Integer, Boolean> results = builder.build();
+        logLatency("setProvisioned results=" + results, startTime);
+        return results;
     }
 
-    /** Sets whether Volte is provisioned. */
-    public void setVolteProvisioned(boolean value) {
+    /**
+     * Returns whether the feature of provisioning {@code key} is provisioned in the IMS stack;
+     * {@link Optional#empty()} if it's not known, e.g. not set since the IMS stack started.
+     */
+    public Optional<Boolean> getProvisioned(int key) {
+        long startTime = SystemClock.elapsedRealtime();
+        int value;
         try {
-            mProvisioningManager.setProvisioningIntValue(
-                    KEY_VOLTE_PROVISIONING_STATUS, value
-                            ? ProvisioningManager.PROVISIONING_VALUE_ENABLED
-                            : ProvisioningManager.PROVISIONING_VALUE_DISABLED);
+            value = mProvisioningManager.getProvisioningIntValue(key);
         } catch (RuntimeException e) {
-            // ignore this exception, possible exception should be NullPointerException or
-            // RemoteException.
+            // Possible exception should be NullPointerException or RemoteException.
+            Log.e(TAG, "Failed to get provisioning key " + key + ". " + e);
+            value = ProvisioningManager.PROVISIONING_RESULT_UNKNOWN;
+        }
+        logLatency("getProvisioningIntValue key=" + key + " value=" + value, startTime);
+        if (value == ProvisioningManager.PROVISIONING_VALUE_ENABLED) {
+            return Optional.of(true);
+        } else if (value == ProvisioningManager.PROVISIONING_VALUE_DISABLED) {
+            return Optional.of(false);
         }
+        return Optional.empty();
     }
 
-    /** Sets whether SMSoIP is provisioned. */
-    public void setSmsoipProvisioned(boolean value) {
-        try {
-            mProvisioningManager.setProvisioningIntValue(
-                    KEY_SMS_OVER_IP_ENABLED, value
-                            ? ProvisioningManager.PROVISIONING_VALUE_ENABLED
-                            : ProvisioningManager.PROVISIONING_VALUE_DISABLED);
-        } catch (RuntimeException e) {
-            // ignore this exception, possible exception should be NullPointerException or
-            // RemoteException.
+    private static void logLatency(String call, long startTime) {
+        long latencyMillis = SystemClock.elapsedRealtime() - startTime;
+        if (latencyMillis >= SLOW_CALL_MILLIS) {
+            Log.w(TAG, call + " is slow, took " + latencyMillis + " ms");
+        } else {
+            Log.d(TAG, call + " took " + latencyMillis + " ms");
         }
     }
 
@@ -23,17 +23,57 @@ import android.os.PersistableBundle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
+import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
+
+import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableSet;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** This class implements Telephony helper methods. */
 public class TelephonyUtils {
     public static final String TAG = "IMSSE-TelephonyUtils";
 
+    /**
+     * Carrier config key of the percentage of VERS.validity by which the next query is moved
+     * earlier at most, to spread the queries of devices provisioned at the same time. The amount
+     * is fixed per device and subscription.
+     */
+    public static final String KEY_VERS_VALIDITY_JITTER_PERCENT_INT =
+            "imsserviceentitlement.vers_validity_jitter_percent_int";
+
+    private static final int DEFAULT_VERS_VALIDITY_JITTER_PERCENT = 10;
+
+    // The entitlement related carrier config of each subscription.
+    @GuardedBy("TelephonyUtils.class")
+    private static final SparseArray<EntitlementCarrierConfig> sCarrierConfigs =
+            new SparseArray<>();
+
+    // Increased on carrier config change, so a read started before it is not kept.
+    @GuardedBy("TelephonyUtils.class")
+    private static int sCarrierConfigsGeneration;
+
+    // The slot index of each active subscription; null if not read yet or changed since then.
+    @GuardedBy("TelephonyUtils.class")
+    @Nullable
+    private static SparseIntArray sActiveSlotIndexes;
+
+    // Increased on subscriptions change, so a read started before it is not kept.
+    @GuardedBy("TelephonyUtils.class")
+    private static int sSubscriptionsGeneration;
+
+    @GuardedBy("TelephonyUtils.class")
+    @Nullable
+    private static OnSubscriptionsChangedListener sSubscriptionsChangedListener;
+
     private final ConnectivityManager mConnectivityManager;
     private final TelephonyManager mTelephonyManager;
 
@@ -87,11 +127,7 @@ public class TelephonyUtils {
      * otherwise.
      */
     public static boolean isActivedSubId(Context context, int subId) {
-        SubscriptionManager subscriptionManager =
-                (SubscriptionManager) context.getSystemService(
-                        Context.TELEPHONY_SUBSCRIPTION_SERVICE);
-        SubscriptionInfo subInfo = subscriptionManager.getActiveSubscriptionInfo(subId);
-        return subInfo != null;
+        return getActiveSlotIndexes(context).indexOfKey(subId) >= 0;
     }
 
     /**
@@ -99,37 +135,142 @@ public class TelephonyUtils {
      * SubscriptionManager#INVALID_SIM_SLOT_INDEX} otherwise.
      */
     public static int getSlotId(Context context, int subId) {
+        int slotId = getActiveSlotIndexes(context)
+                .get(subId, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+        if (slotId == SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
+            Log.d(TAG, "Can't find actived subscription for " + subId);
+        }
+        return slotId;
+    }
+
+    /**
+     * Returns the slot index of each active subscription. It's read from {@link
+     * SubscriptionManager} once and kept until the subscriptions are changed.
+     */
+    private static SparseIntArray getActiveSlotIndexes(Context context) {
+        synchronized (TelephonyUtils.class) {
+            if (sActiveSlotIndexes != null) {
+                return sActiveSlotIndexes;
+            }
+        }
+        // Registered before reading, so a change after the read is not missed.
+        registerSubscriptionsChangedListener(context);
+        int generation;
+        synchronized (TelephonyUtils.class) {
+            if (sActiveSlotIndexes != null) {
+                return sActiveSlotIndexes;
+            }
+            generation = sSubscriptionsGeneration;
+        }
         SubscriptionManager subscriptionManager =
                 (SubscriptionManager) context.getSystemService(
                         Context.TELEPHONY_SUBSCRIPTION_SERVICE);
-        SubscriptionInfo subInfo = subscriptionManager.getActiveSubscriptionInfo(subId);
-        if (subInfo != null) {
-            return subInfo.getSimSlotIndex();
+        SparseIntArray slotIndexes = new SparseIntArray();
+        List<SubscriptionInfo> infos = subscriptionManager.getActiveSubscriptionInfoList();
+        if (infos != null) {
+            for (SubscriptionInfo info : infos) {
+                slotIndexes.put(info.getSubscriptionId(), info.getSimSlotIndex());
+            }
+        }
+        synchronized (TelephonyUtils.class) {
+            // Not kept if the subscriptions are changed while reading.
+            if (generation == sSubscriptionsGeneration) {
+                sActiveSlotIndexes = slotIndexes;
+            }
+        }
+        return slotIndexes;
+    }
+
+    private static void registerSubscriptionsChangedListener(Context context) {
+        OnSubscriptionsChangedListener listener;
+        synchronized (TelephonyUtils.class) {
+            if (sSubscriptionsChangedListener != null) {
+                return;
+            }
+            listener = new SubscriptionsChangedListener();
+            sSubscriptionsChangedListener = listener;
         }
-        Log.d(TAG, "Can't find actived subscription for " + subId);
-        return SubscriptionManager.INVALID_SIM_SLOT_INDEX;
+        // The listener is kept for the process, so it's registered with the application context
+        // rather than the caller's one, e.g. an activity.
+        SubscriptionManager subscriptionManager =
+                (SubscriptionManager) context.getApplicationContext().getSystemService(
+                        Context.TELEPHONY_SUBSCRIPTION_SERVICE);
+        subscriptionManager.addOnSubscriptionsChangedListener(
+                Executors.getDirectExecutor(), listener);
     }
 
-    /** Returns carrier config for the {@code subId}. */
-    private static PersistableBundle getConfigForSubId(Context context, int subId) {
+    /**
+     * Drops the cached active subscriptions on change. The listener is notified once on
+     * registration with the current subscriptions, which are read after it's registered, so that
+     * notification is skipped.
+     */
+    private static final class SubscriptionsChangedListener
+            extends OnSubscriptionsChangedListener {
+        private final AtomicBoolean mRegistrationNotified = new AtomicBoolean();
+
+        @Override
+        public void onSubscriptionsChanged() {
+            if (mRegistrationNotified.getAndSet(true)) {
+                invalidateSubscriptionsCache();
+            }
+        }
+    }
+
+    /** Drops the cached active subscriptions, so they are read again on next use. */
+    public static synchronized void invalidateSubscriptionsCache() {
+        sActiveSlotIndexes = null;
+        sSubscriptionsGeneration++;
+    }
+
+    /**
+     * Returns the entitlement related carrier config for the {@code subId}. It is read from {@link
+     * CarrierConfigManager} once and then cached until {@link #invalidateCarrierConfigCache}.
+     */
+    private static EntitlementCarrierConfig getConfigForSubId(Context context, int subId) {
+        int generation;
+        synchronized (TelephonyUtils.class) {
+            EntitlementCarrierConfig cachedConfig = sCarrierConfigs.get(subId);
+            if (cachedConfig != null) {
+                return cachedConfig;
+            }
+            generation = sCarrierConfigsGeneration;
+        }
         CarrierConfigManager carrierConfigManager =
                 context.getSystemService(CarrierConfigManager.class);
         PersistableBundle carrierConfig = carrierConfigManager.getConfigForSubId(subId);
         if (carrierConfig == null) {
+            // Not cached, as the carrier config is not loaded yet.
             Log.d(TAG, "getDefaultConfig");
-            carrierConfig = CarrierConfigManager.getDefaultConfig();
+            return EntitlementCarrierConfig.from(CarrierConfigManager.getDefaultConfig());
+        }
+        EntitlementCarrierConfig config = EntitlementCarrierConfig.from(carrierConfig);
+        synchronized (TelephonyUtils.class) {
+            // Not kept if the carrier config is changed while reading.
+            if (generation == sCarrierConfigsGeneration) {
+                sCarrierConfigs.put(subId, config);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Drops the cached carrier config of the {@code subId}, or of all subscriptions if it's
+     * invalid. Called on {@link CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED}.
+     */
+    public static synchronized void invalidateCarrierConfigCache(int subId) {
+        if (SubscriptionManager.isValidSubscriptionId(subId)) {
+            sCarrierConfigs.remove(subId);
+        } else {
+            sCarrierConfigs.clear();
         }
-        return carrierConfig;
+        sCarrierConfigsGeneration++;
     }
 
     /**
      * Returns FCM sender id for the {@code subId} or a default empty string if it is not available.
      */
     public static String getFcmSenderId(Context context, int subId) {
-        return getConfigForSubId(context, subId).getString(
-                CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING,
-                ""
-        );
+        return getConfigForSubId(context, subId).fcmSenderId();
     }
 
     /**
@@ -137,10 +278,7 @@ public class TelephonyUtils {
      * a default empty string if it is not available.
      */
     public static String getEntitlementServerUrl(Context context, int subId) {
-        return getConfigForSubId(context, subId).getString(
-                CarrierConfigManager.ImsServiceEntitlement.KEY_ENTITLEMENT_SERVER_URL_STRING,
-                ""
-        );
+        return getConfigForSubId(context, subId).entitlementServerUrl();
     }
 
     /**
@@ -148,10 +286,15 @@ public class TelephonyUtils {
      * or false if it doesn't need to do.
      */
     public static boolean isImsProvisioningRequired(Context context, int subId) {
-        return getConfigForSubId(context, subId).getBoolean(
-                CarrierConfigManager.ImsServiceEntitlement.KEY_IMS_PROVISIONING_BOOL,
-                false
-        );
+        return getConfigForSubId(context, subId).imsProvisioningRequired();
+    }
+
+    /**
+     * Returns the percentage of VERS.validity, between 0 and 100, by which the next query of the
+     * {@code subId} is moved earlier at most. See {@link #KEY_VERS_VALIDITY_JITTER_PERCENT_INT}.
+     */
+    public static int getVersValidityJitterPercent(Context context, int subId) {
+        return getConfigForSubId(context, subId).versValidityJitterPercent();
     }
 
     /** Returns SubIds which support FCM. */
@@ -176,4 +319,33 @@ public class TelephonyUtils {
     private static boolean isFcmPushNotificationSupported(Context context, int subId) {
         return !TelephonyUtils.getFcmSenderId(context, subId).isEmpty();
     }
+
+    /** The carrier config values used by this app, read from the carrier config bundle once. */
+    @AutoValue
+    abstract static class EntitlementCarrierConfig {
+        abstract String fcmSenderId();
+
+        abstract String entitlementServerUrl();
+
+        abstract boolean imsProvisioningRequired();
+
+        abstract int versValidityJitterPercent();
+
+        static EntitlementCarrierConfig from(PersistableBundle carrierConfig) {
+            return new AutoValue_TelephonyUtils_EntitlementCarrierConfig(
+                    carrierConfig.getString(
+                            CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING,
+                            ""),
+                    carrierConfig.getString(
+                            CarrierConfigManager.ImsServiceEntitlement
+                                    .KEY_ENTITLEMENT_SERVER_URL_STRING,
+                            ""),
+                    carrierConfig.getBoolean(
+                            CarrierConfigManager.ImsServiceEntitlement.KEY_IMS_PROVISIONING_BOOL,
+                            false),
+                    Math.max(0, Math.min(100, carrierConfig.getInt(
+                            KEY_VERS_VALIDITY_JITTER_PERCENT_INT,
+                            DEFAULT_VERS_VALIDITY_JITTER_PERCENT))));
+        }
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the small writes of entitlement state into one flush on a background thread.
+ *
+ * <p>A write is enqueued with a key, and replaces the pending write of the same key, so repeated
+ * updates of the same state are written once. The stores keep their state in memory, so readers
+ * are not affected by the pending writes. The writes are flushed shortly after enqueued, or once
+ * {@link #awaitDurable} is called; a job calls it before finishing so nothing is lost when the
+ * process is killed afterwards.
+ */
+public final class WriteCoalescer {
+    private static final String TAG = "IMSSE-WriteCoalescer";
+
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+
+    private static final Object sLock = new Object();
+    // All writes run on this single thread, so they are ordered and a flush requested by
+    // awaitDurable() runs after any ongoing one.
+    private static final ScheduledExecutorService sFlushExecutor =
+            new ScheduledThreadPoolExecutor(1);
+
+    @GuardedBy("sLock")
+    private static final Map<String, Runnable> sPendingWrites = new LinkedHashMap<>();
+    @GuardedBy("sLock")
+    private static boolean sFlushScheduled;
+
+    private WriteCoalescer() {}
+
+    /**
+     * Enqueues a {@code write} which makes the state of {@code key} durable. It replaces the
+     * pending write of the same {@code key} if any.
+     */
+    public static void enqueue(String key, Runnable write) {
+        synchronized (sLock) {
+            sPendingWrites.put(key, write);
+            if (!sFlushScheduled) {
+                sFlushScheduled = true;
+                sFlushExecutor.schedule(
+                        WriteCoalescer::flush, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Enqueues a write which makes the changes {@code apply()}-ed to the {@code preferences}
+     * durable, with {@code key} identifying the preferences.
+     */
+    public static void enqueueSync(String key, SharedPreferences preferences) {
+        // An empty commit returns once the former apply() of the same file are written to disk.
+        enqueue(key, () -> preferences.edit().commit());
+    }
+
+    /** Blocks until all the writes enqueued before are flushed. */
+    @WorkerThread
+    public static void awaitDurable() {
+        try {
+            sFlushExecutor.submit(WriteCoalescer::flush).get();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for the writes.");
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to flush the writes. " + e);
+        }
+    }
+
+    private static void flush() {
+        List<Runnable> writes;
+        synchronized (sLock) {
+            writes = new ArrayList<>(sPendingWrites.values());
+            sPendingWrites.clear();
+            sFlushScheduled = false;
+        }
+        for (Runnable write : writes) {
+            try {
+                write.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to write. " + e);
+            }
+        }
+    }
+}
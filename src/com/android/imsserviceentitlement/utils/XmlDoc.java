@@ -22,6 +22,7 @@ import static com.android.imsserviceentitlement.ts43.Ts43Constants.ResponseXmlNo
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.Xml;
 
 import androidx.annotation.Nullable;
 
@@ -34,9 +35,15 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -50,41 +57,86 @@ public class XmlDoc {
 
     private static final String NODE_CHARACTERISTIC = "characteristic";
     private static final String NODE_PARM = "parm";
+    private static final String CHARACTERISTIC_TYPE = "type";
     private static final String PARM_NAME = "name";
     private static final String PARM_VALUE = "value";
 
-    private final Map<String, Map<String, String>> mNodesMap = new ArrayMap<>();
+    /** The parser engines which can be used to build a {@link XmlDoc}. */
+    public enum Engine {
+        /** Builds the W3C DOM of the whole document and then walks it. */
+        DOM,
+        /** Reads characteristics and params in one forward pass of a {@link XmlPullParser}. */
+        PULL,
+    }
+
+    // Params of nodes, indexed by node name and then application id. The application id is ""
+    // for the nodes other than APPLICATION, so the lookup needs no composed key.
+    private final Map<String, Map<String, Map<String, String>>> mNodesMap = new ArrayMap<>();
 
     public XmlDoc(String responseBody) {
-        parseXmlResponse(responseBody);
+        this(responseBody, Engine.PULL);
+    }
+
+    public XmlDoc(String responseBody, Engine engine) {
+        parseXmlResponse(responseBody, engine);
     }
 
     /** Returns param value for given node and key. */
     public Optional<String> get(String node, String key, @Nullable String appId) {
-        Map<String, String> paramsMap = mNodesMap.get(combineKeyWithAppId(node, appId));
-        return Optional.ofNullable(paramsMap == null ? null : paramsMap.get(key));
+        return Optional.ofNullable(getOrDefault(node, key, appId, null));
     }
 
-    private String combineKeyWithAppId(String node, @Nullable String appId) {
-        return APPLICATION.equals(node) && !TextUtils.isEmpty(appId) ? node + "_" + appId : node;
+    /**
+     * Returns param value for given node and key, or {@code defaultValue} if not exist. Unlike
+     * {@link #get}, it allocates nothing.
+     */
+    @Nullable
+    public String getOrDefault(
+            String node, String key, @Nullable String appId, @Nullable String defaultValue) {
+        Map<String, Map<String, String>> appsMap = mNodesMap.get(node);
+        Map<String, String> paramsMap = appsMap == null ? null : appsMap.get(appKey(node, appId));
+        String value = paramsMap == null ? null : paramsMap.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static String appKey(String node, @Nullable String appId) {
+        return APPLICATION.equals(node) && !TextUtils.isEmpty(appId) ? appId : "";
+    }
+
+    private void putParams(String node, Map<String, String> paramsMap) {
+        Map<String, Map<String, String>> appsMap = mNodesMap.get(node);
+        if (appsMap == null) {
+            appsMap = new ArrayMap<>();
+            mNodesMap.put(node, appsMap);
+        }
+        appsMap.put(appKey(node, paramsMap.get(APP_ID)), paramsMap);
     }
 
     /**
      * Parses the response body as per format defined in TS.43 2.7.2 New Characteristics for
      * XML-Based Document.
      */
-    private void parseXmlResponse(String responseBody) {
+    private void parseXmlResponse(String responseBody, Engine engine) {
         if (responseBody == null) {
             return;
         }
 
         // Workaround: some server doesn't escape "&" in XML response and that will cause XML parser
-        // failure later.
-        // This is a quick impl of escaping w/o intorducing a ton of new dependencies.
-        responseBody = responseBody.replace("&", "&amp;").replace("&amp;amp;", "&amp;");
+        // failure later. The reader escapes them while the parser reads, w/o copying the response.
+        Reader reader = AmpersandEscapingReader.of(responseBody);
+
+        if (engine == Engine.PULL) {
+            parseWithPullParser(reader);
+        } else {
+            parseWithDocumentBuilder(reader);
+        }
+    }
 
+    private void parseWithDocumentBuilder(Reader reader) {
+        // Only tests and benchmarks use the DOM engine, as the reference of the pull engine, so a
+        // builder is created per document rather than kept for reuse.
         try {
-            InputSource inputSource = new InputSource(new StringReader(responseBody));
+            InputSource inputSource = new InputSource(reader);
             DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
             DocumentBuilder docBuilder = builderFactory.newDocumentBuilder();
             Document doc = docBuilder.parse(inputSource);
@@ -111,15 +163,62 @@ public class XmlDoc {
                 Map<String, String> paramsMap = new ArrayMap<>();
                 Element element = (Element) nodeList.item(i);
                 paramsMap.putAll(parseParams(element.getElementsByTagName(NODE_PARM)));
-                mNodesMap.put(
-                        combineKeyWithAppId(map.item(0).getNodeValue(), paramsMap.get(APP_ID)),
-                        paramsMap);
+                putParams(map.item(0).getNodeValue(), paramsMap);
             }
         } catch (ParserConfigurationException | IOException | SAXException e) {
             Log.e(TAG, "Failed to parse XML node. " + e);
         }
     }
 
+    /**
+     * Collects the characteristics in a single pass without building the DOM. A param belongs to
+     * every characteristic enclosing it, as {@link Element#getElementsByTagName} does for the
+     * {@link Engine#DOM} engine. Nothing is collected if the document is malformed.
+     */
+    private void parseWithPullParser(Reader reader) {
+        List<String> types = new ArrayList<>();
+        List<Map<String, String>> paramsMaps = new ArrayList<>();
+        Deque<Map<String, String>> openParamsMaps = new ArrayDeque<>();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(reader);
+            for (int eventType = parser.getEventType();
+                    eventType != XmlPullParser.END_DOCUMENT;
+                    eventType = parser.next()) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    if (NODE_CHARACTERISTIC.equals(parser.getName())) {
+                        Map<String, String> paramsMap = new ArrayMap<>();
+                        types.add(parser.getAttributeValue(null, CHARACTERISTIC_TYPE));
+                        paramsMaps.add(paramsMap);
+                        openParamsMaps.push(paramsMap);
+                    } else if (NODE_PARM.equals(parser.getName())) {
+                        String name = parser.getAttributeValue(null, PARM_NAME);
+                        String value = parser.getAttributeValue(null, PARM_VALUE);
+                        if (TextUtils.isEmpty(name) || TextUtils.isEmpty(value)) {
+                            continue;
+                        }
+                        for (Map<String, String> paramsMap : openParamsMaps) {
+                            paramsMap.put(name, value);
+                        }
+                        if (DebugUtils.isPiiLoggable()) {
+                            Log.d(TAG, "parseParams() put name '" + name + "' with value " + value);
+                        }
+                    }
+                } else if (eventType == XmlPullParser.END_TAG
+                        && NODE_CHARACTERISTIC.equals(parser.getName())) {
+                    openParamsMaps.pop();
+                }
+            }
+        } catch (XmlPullParserException | IOException e) {
+            Log.e(TAG, "Failed to parse XML node. " + e);
+            return;
+        }
+
+        for (int i = 0; i < types.size(); i++) {
+            putParams(types.get(i), paramsMaps.get(i));
+        }
+    }
+
     private static Map<String, String> parseParams(NodeList nodeList) {
         Map<String, String> nameValue = new ArrayMap<>();
         for (int i = 0; i < nodeList.getLength(); i++) {
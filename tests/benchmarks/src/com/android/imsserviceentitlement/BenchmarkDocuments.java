@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement;
+
+/** The TS.43 provisioning documents used as input of the benchmarks. */
+public final class BenchmarkDocuments {
+    /** A document for VoWiFi only, as returned to a WFC activation query. */
+    public static final String SMALL =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "  <characteristic type=\"VERS\">"
+                    + "    <parm name=\"version\" value=\"1\"/>"
+                    + "    <parm name=\"validity\" value=\"1728000\"/>"
+                    + "  </characteristic>"
+                    + "  <characteristic type=\"TOKEN\">"
+                    + "    <parm name=\"token\" value=\"kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX\"/>"
+                    + "    <parm name=\"validity\" value=\"3600\"/>"
+                    + "  </characteristic>"
+                    + "  <characteristic type=\"APPLICATION\">"
+                    + "    <parm name=\"AppID\" value=\"ap2004\"/>"
+                    + "    <parm name=\"EntitlementStatus\" value=\"1\"/>"
+                    + "    <parm name=\"AddrStatus\" value=\"1\"/>"
+                    + "    <parm name=\"TC_Status\" value=\"1\"/>"
+                    + "    <parm name=\"ProvStatus\" value=\"1\"/>"
+                    + "  </characteristic>"
+                    + "</wap-provisioningdoc>";
+
+    /**
+     * A document for VoWiFi, VoLTE and SMSoIP with service flow user data of unescaped "&", and
+     * characteristics of other applications.
+     */
+    public static final String LARGE = buildLargeDocument();
+
+    /** A document truncated in the middle of a characteristic. */
+    public static final String MALFORMED =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "  <characteristic type=\"VERS\">"
+                    + "    <parm name=\"version\" value=\"1\"/>"
+                    + "    <parm name=\"validity\" value=\"1728000\"/>"
+                    + "  </characteristic>"
+                    + "  <characteristic type=\"APPLICATION\">"
+                    + "    <parm name=\"AppID\" value=\"ap2004\"/>"
+                    + "    <parm name=\"ServiceFlow_URL\" value=\"\""
+                    + "    <parm name=\"ServiceFlow_UserData\" value=\"\"/>";
+
+    private static final int OTHER_APPLICATIONS = 20;
+    private static final int USER_DATA_PAIRS = 40;
+
+    private BenchmarkDocuments() {}
+
+    private static String buildLargeDocument() {
+        StringBuilder userData = new StringBuilder("PostData=U6%2FbQ%2BEP");
+        for (int i = 0; i < USER_DATA_PAIRS; i++) {
+            userData.append("&key").append(i).append("=value%2F").append(i);
+        }
+
+        StringBuilder doc = new StringBuilder("<?xml version=\"1.0\"?>")
+                .append("<wap-provisioningdoc version=\"1.1\">")
+                .append("<characteristic type=\"VERS\">")
+                .append("<parm name=\"version\" value=\"4\"/>")
+                .append("<parm name=\"validity\" value=\"172800\"/>")
+                .append("</characteristic>")
+                .append("<characteristic type=\"TOKEN\">")
+                .append("<parm name=\"token\" value=\"kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX\"/>")
+                .append("<parm name=\"validity\" value=\"3600\"/>")
+                .append("</characteristic>")
+                .append("<characteristic type=\"APPLICATION\">")
+                .append("<parm name=\"AppID\" value=\"ap2004\"/>")
+                .append("<parm name=\"Name\" value=\"VoWiFi Entitlement settings\"/>")
+                .append("<parm name=\"EntitlementStatus\" value=\"0\"/>")
+                .append("<parm name=\"AddrStatus\" value=\"0\"/>")
+                .append("<parm name=\"TC_Status\" value=\"0\"/>")
+                .append("<parm name=\"ProvStatus\" value=\"0\"/>")
+                .append("<parm name=\"ServiceFlow_URL\" value=\"")
+                .append("https://entitlement.example.com/VoWiFi/CheckPostData\"/>")
+                .append("<parm name=\"ServiceFlow_UserData\" value=\"")
+                .append(userData)
+                .append("\"/>")
+                .append("</characteristic>")
+                .append("<characteristic type=\"APPLICATION\">")
+                .append("<parm name=\"AppID\" value=\"ap2003\"/>")
+                .append("<parm name=\"EntitlementStatus\" value=\"1\"/>")
+                .append("</characteristic>")
+                .append("<characteristic type=\"APPLICATION\">")
+                .append("<parm name=\"AppID\" value=\"ap2005\"/>")
+                .append("<parm name=\"EntitlementStatus\" value=\"1\"/>")
+                .append("</characteristic>");
+        for (int i = 0; i < OTHER_APPLICATIONS; i++) {
+            doc.append("<characteristic type=\"APPLICATION\">")
+                    .append("<parm name=\"AppID\" value=\"ap21").append(i).append("\"/>")
+                    .append("<parm name=\"Name\" value=\"Application ").append(i).append("\"/>")
+                    .append("<parm name=\"EntitlementStatus\" value=\"2\"/>")
+                    .append("</characteristic>");
+        }
+        return doc.append("</wap-provisioningdoc>").toString();
+    }
+}
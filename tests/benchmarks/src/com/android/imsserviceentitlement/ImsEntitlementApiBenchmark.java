@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
+import com.android.imsserviceentitlement.fcm.FcmTokenStore;
+import com.android.libraries.entitlement.ServiceEntitlement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Benchmarks {@link ImsEntitlementApi#checkEntitlementStatus} with the server response faked, i.e.
+ * the decision path from a response to the {@code EntitlementResult} run on every poll.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImsEntitlementApiBenchmark {
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private static final int SUB_ID = 1;
+
+    private final Context mContext = ApplicationProvider.getApplicationContext();
+    private final ServiceEntitlement mServiceEntitlement = mock(ServiceEntitlement.class);
+
+    private EntitlementConfiguration mConfiguration;
+
+    @Before
+    public void setUp() {
+        // Avoid waiting for FCM token in the entitlement query.
+        FcmTokenStore.setToken(mContext, SUB_ID, "FCM_TOKEN");
+        mConfiguration = new EntitlementConfiguration(mContext, SUB_ID);
+    }
+
+    @After
+    public void tearDown() {
+        mConfiguration.reset();
+    }
+
+    @Test
+    public void checkEntitlementStatus_small() throws Exception {
+        checkEntitlementStatus(BenchmarkDocuments.SMALL, /* needsImsProvisioning= */ false);
+    }
+
+    @Test
+    public void checkEntitlementStatus_large() throws Exception {
+        checkEntitlementStatus(BenchmarkDocuments.LARGE, /* needsImsProvisioning= */ true);
+    }
+
+    @Test
+    public void checkEntitlementStatus_malformed() throws Exception {
+        checkEntitlementStatus(BenchmarkDocuments.MALFORMED, /* needsImsProvisioning= */ true);
+    }
+
+    private void checkEntitlementStatus(String response, boolean needsImsProvisioning)
+            throws Exception {
+        when(mServiceEntitlement.queryEntitlementStatus(any(), any())).thenReturn(response);
+        ImsEntitlementApi imsEntitlementApi =
+                new ImsEntitlementApi(
+                        mContext, SUB_ID, needsImsProvisioning, mServiceEntitlement,
+                        mConfiguration);
+
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            // Drop the stored document, otherwise the same response is not parsed again.
+            state.pauseTiming();
+            mConfiguration.reset();
+            state.resumeTiming();
+            imsEntitlementApi.checkEntitlementStatus();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.BenchmarkDocuments;
+import com.android.imsserviceentitlement.utils.WriteCoalescer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class EntitlementConfigurationBenchmark {
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private static final int SUB_ID = 1;
+
+    private final Context mContext = ApplicationProvider.getApplicationContext();
+
+    private EntitlementConfiguration mConfiguration;
+
+    @Before
+    public void setUp() {
+        mConfiguration = new EntitlementConfiguration(mContext, SUB_ID);
+        mConfiguration.update(BenchmarkDocuments.LARGE);
+    }
+
+    @After
+    public void tearDown() {
+        mConfiguration.reset();
+    }
+
+    @Test
+    public void entitlementValidation() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mConfiguration.entitlementValidation();
+        }
+    }
+
+    @Test
+    public void update_newDocument() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            // Drop the stored document, otherwise the same one is not parsed again.
+            state.pauseTiming();
+            mConfiguration.reset();
+            state.resumeTiming();
+            mConfiguration.update(BenchmarkDocuments.LARGE);
+        }
+    }
+
+    @Test
+    public void update_sameDocument() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mConfiguration.update(BenchmarkDocuments.LARGE);
+        }
+    }
+
+    /** Reads the stored configuration on a data store which has not loaded it, as on boot. */
+    @Test
+    public void dataStoreGet_notLoaded() {
+        WriteCoalescer.awaitDurable();
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new EntitlementConfigurationsDataStore(mContext, SUB_ID).get();
+        }
+    }
+}
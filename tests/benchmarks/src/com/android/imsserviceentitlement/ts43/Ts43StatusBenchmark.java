@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.ts43;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.BenchmarkDocuments;
+import com.android.imsserviceentitlement.utils.XmlDoc;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class Ts43StatusBenchmark {
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final XmlDoc mXmlDoc = new XmlDoc(BenchmarkDocuments.LARGE);
+
+    @Test
+    public void vowifiStatusBuilder() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Ts43VowifiStatus.builder(mXmlDoc).build();
+        }
+    }
+
+    @Test
+    public void volteStatusBuilder() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Ts43VolteStatus.builder(mXmlDoc).build();
+        }
+    }
+
+    @Test
+    public void smsOverIpStatusBuilder() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Ts43SmsOverIpStatus.builder(mXmlDoc).build();
+        }
+    }
+}
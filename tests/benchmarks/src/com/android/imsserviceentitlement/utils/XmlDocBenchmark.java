@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.BenchmarkDocuments;
+import com.android.imsserviceentitlement.utils.XmlDoc.Engine;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class XmlDocBenchmark {
+    @Rule public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void parse_small_pullEngine() {
+        parse(BenchmarkDocuments.SMALL, Engine.PULL);
+    }
+
+    @Test
+    public void parse_small_domEngine() {
+        parse(BenchmarkDocuments.SMALL, Engine.DOM);
+    }
+
+    @Test
+    public void parse_large_pullEngine() {
+        parse(BenchmarkDocuments.LARGE, Engine.PULL);
+    }
+
+    @Test
+    public void parse_large_domEngine() {
+        parse(BenchmarkDocuments.LARGE, Engine.DOM);
+    }
+
+    @Test
+    public void parse_malformed_pullEngine() {
+        parse(BenchmarkDocuments.MALFORMED, Engine.PULL);
+    }
+
+    @Test
+    public void parse_malformed_domEngine() {
+        parse(BenchmarkDocuments.MALFORMED, Engine.DOM);
+    }
+
+    @Test
+    public void getOrDefault_large() {
+        XmlDoc xmlDoc = new XmlDoc(BenchmarkDocuments.LARGE);
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            xmlDoc.getOrDefault("APPLICATION", "EntitlementStatus", "ap2004", null);
+        }
+    }
+
+    /**
+     * Looks up the characteristics read for every VoWiFi status. The allocation count reported
+     * per iteration is expected to be 0.
+     */
+    @Test
+    public void getOrDefault_vowifiCharacteristics() {
+        XmlDoc xmlDoc = new XmlDoc(BenchmarkDocuments.SMALL);
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            xmlDoc.getOrDefault("APPLICATION", "EntitlementStatus", "ap2004", null);
+            xmlDoc.getOrDefault("APPLICATION", "TC_Status", "ap2004", null);
+            xmlDoc.getOrDefault("APPLICATION", "AddrStatus", "ap2004", null);
+            xmlDoc.getOrDefault("APPLICATION", "ProvStatus", "ap2004", null);
+            xmlDoc.getOrDefault("VERS", "version", null, null);
+        }
+    }
+
+    private void parse(String document, Engine engine) {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new XmlDoc(document, engine);
+        }
+    }
+}
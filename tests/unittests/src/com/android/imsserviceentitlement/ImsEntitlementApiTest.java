@@ -24,6 +24,7 @@ import static com.google.common.truth.Truth.assertThat;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -37,6 +38,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
 import com.android.imsserviceentitlement.entitlement.EntitlementResult;
+import com.android.imsserviceentitlement.entitlement.EntitlementResultCache;
 import com.android.imsserviceentitlement.fcm.FcmTokenStore;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
 import com.android.libraries.entitlement.ServiceEntitlement;
@@ -61,6 +63,11 @@ import java.time.ZoneOffset;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RunWith(AndroidJUnit4.class)
 public class ImsEntitlementApiTest {
@@ -139,6 +146,7 @@ public class ImsEntitlementApiTest {
         setImsProvisioningBool(true);
         FcmTokenStore.setToken(mContext, SUB_ID, FCM_TOKEN);
         mEntitlementConfiguration.reset();
+        EntitlementResultCache.invalidate(SUB_ID);
     }
 
     @Test
@@ -297,6 +305,149 @@ public class ImsEntitlementApiTest {
         assertThat(result.getRetryAfterSeconds()).isEqualTo(120);
     }
 
+    @Test
+    public void getCachedEntitlementStatus_afterQuery_returnsResult() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any())).thenReturn(RAW_XML);
+
+        EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(mImsEntitlementApi.getCachedEntitlementStatus()).isSameInstanceAs(result);
+    }
+
+    @Test
+    public void getCachedEntitlementStatus_retryAfter_returnsNull() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenThrow(
+                        new ServiceEntitlementException(
+                                ERROR_HTTP_STATUS_NOT_SUCCESS,
+                                503,
+                                "120",
+                                "Invalid connection response"));
+
+        mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(mImsEntitlementApi.getCachedEntitlementStatus()).isNull();
+    }
+
+    @Test
+    public void checkEntitlementStatus_concurrentCalls_queryOnce() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        CountDownLatch queryReleased = new CountDownLatch(1);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any()))
+                .thenAnswer(invocation -> {
+                    queryStarted.countDown();
+                    queryReleased.await();
+                    return RAW_XML;
+                });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<EntitlementResult> firstResult =
+                executor.submit(() -> mImsEntitlementApi.checkEntitlementStatus());
+        queryStarted.await();
+        AtomicReference<EntitlementResult> secondResult = new AtomicReference<>();
+        Thread secondCaller =
+                new Thread(() -> secondResult.set(mImsEntitlementApi.checkEntitlementStatus()));
+
+        secondCaller.start();
+        awaitWaiting(secondCaller);
+        queryReleased.countDown();
+        secondCaller.join();
+
+        assertThat(secondResult.get()).isSameInstanceAs(firstResult.get());
+        verify(mMockServiceEntitlement, times(1)).queryEntitlementStatus(any(), any());
+        executor.shutdown();
+    }
+
+    @Test
+    public void checkEntitlementStatus_joinedQueryInterrupted_queryAgain() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        CountDownLatch queryReleased = new CountDownLatch(1);
+        when(mMockServiceEntitlement.queryEntitlementStatus(any(), any()))
+                .thenAnswer(invocation -> {
+                    queryStarted.countDown();
+                    queryReleased.await();
+                    // The polling job running the query is stopped.
+                    Thread.currentThread().interrupt();
+                    throw new ServiceEntitlementException(
+                            ERROR_HTTP_STATUS_NOT_SUCCESS, 500, "Interrupted");
+                })
+                .thenReturn(RAW_XML);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<EntitlementResult> interruptedResult =
+                executor.submit(() -> mImsEntitlementApi.checkEntitlementStatus());
+        queryStarted.await();
+        AtomicReference<EntitlementResult> joinerResult = new AtomicReference<>();
+        Thread joiner =
+                new Thread(() -> joinerResult.set(mImsEntitlementApi.checkEntitlementStatus()));
+
+        joiner.start();
+        awaitWaiting(joiner);
+        queryReleased.countDown();
+        joiner.join();
+
+        assertThat(interruptedResult.get()).isNull();
+        assertThat(joinerResult.get()).isNotNull();
+        verify(mMockServiceEntitlement, times(2)).queryEntitlementStatus(any(), any());
+        executor.shutdown();
+    }
+
+    @Test
+    public void checkEntitlementStatus_joinedQuery_readConfigurationOfQuery() throws Exception {
+        setImsProvisioningBool(false);
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        EntitlementConfiguration joinerConfiguration =
+                new EntitlementConfiguration(mContext, SUB_ID);
+        ImsEntitlementApi joinerApi = new ImsEntitlementApi(
+                mContext, SUB_ID, /* needsImsProvisioning= */ false, mMockServiceEntitlement,
+                joinerConfiguration);
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        CountDownLatch queryReleased = new CountDownLatch(1);
+        when(mMockServiceEntitlement.queryEntitlementStatus(any(), any()))
+                .thenAnswer(invocation -> {
+                    queryStarted.countDown();
+                    queryReleased.await();
+                    return RAW_XML_NEW_TOKEN;
+                });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(() -> mImsEntitlementApi.checkEntitlementStatus());
+        queryStarted.await();
+        Thread joiner = new Thread(joinerApi::checkEntitlementStatus);
+
+        joiner.start();
+        awaitWaiting(joiner);
+        queryReleased.countDown();
+        joiner.join();
+
+        assertThat(joinerConfiguration.getToken().get()).isEqualTo("NEW_TOKEN");
+        assertThat(joinerConfiguration.getVersValidity()).isEqualTo(1728000);
+        executor.shutdown();
+    }
+
+    @Test
+    public void checkEntitlementStatus_noFcmToken_queryWithoutToken() throws Exception {
+        setImsProvisioningBool(false);
+        FcmTokenStore.setToken(mContext, SUB_ID, "");
+        setupImsEntitlementApi(mEntitlementConfiguration);
+        when(mMockServiceEntitlement.queryEntitlementStatus(
+                eq(ImmutableList.of(ServiceEntitlement.APP_VOWIFI)), any())).thenReturn(RAW_XML);
+
+        EntitlementResult result = mImsEntitlementApi.checkEntitlementStatus();
+
+        assertThat(result).isNotNull();
+        verify(mMockServiceEntitlement).queryEntitlementStatus(
+                ImmutableList.of(ServiceEntitlement.APP_VOWIFI), authenticationRequest(null));
+    }
+
     @Test
     public void checkEntitlementStatus_invalidSubId_resultNull() {
         ImsEntitlementApi imsEntitlementApi =
@@ -320,6 +471,12 @@ public class ImsEntitlementApiTest {
         return requestBuilder.build();
     }
 
+    private static void awaitWaiting(Thread thread) {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+    }
+
     private void setupImsEntitlementApi(EntitlementConfiguration entitlementConfiguration) {
         mImsEntitlementApi = new ImsEntitlementApi(
                 mContext,
@@ -336,6 +493,7 @@ public class ImsEntitlementApiTest {
                 provisioning
         );
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
+        TelephonyUtils.invalidateCarrierConfigCache(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
         when(mContext.getSystemService(CarrierConfigManager.class))
                 .thenReturn(mCarrierConfigManager);
     }
@@ -18,11 +18,14 @@ package com.android.imsserviceentitlement;
 
 import static com.google.common.truth.Truth.assertThat;
 
-import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.app.job.JobInfo;
 import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.content.Context;
@@ -30,11 +33,13 @@ import android.os.PersistableBundle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
+import android.util.ArrayMap;
 import android.util.SparseArray;
 
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
 import com.android.imsserviceentitlement.entitlement.EntitlementResult;
 import com.android.imsserviceentitlement.job.JobManager;
 import com.android.imsserviceentitlement.ts43.Ts43SmsOverIpStatus;
@@ -45,6 +50,11 @@ import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.EntitlementStatus
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.ProvStatus;
 import com.android.imsserviceentitlement.ts43.Ts43VowifiStatus.TcStatus;
 import com.android.imsserviceentitlement.utils.ImsUtils;
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -56,6 +66,11 @@ import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
 import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(AndroidJUnit4.class)
 public class ImsEntitlementPollingServiceTest {
@@ -72,9 +87,18 @@ public class ImsEntitlementPollingServiceTest {
 
     private ImsEntitlementPollingService mService;
     private JobScheduler mScheduler;
+    // The provisioning values in the IMS stack, set through mImsUtils.
+    private final Map<Integer, Boolean> mImsProvisioning = new ArrayMap<>();
 
     private static final int SUB_ID = 1;
     private static final int SLOT_ID = 0;
+    private static final String RAW_XML_VALIDITY_ONE_DAY =
+            "<wap-provisioningdoc version=\"1.1\">\n"
+                    + "    <characteristic type=\"VERS\">\n"
+                    + "        <parm name=\"version\" value=\"1\"/>\n"
+                    + "        <parm name=\"validity\" value=\"86400\"/>\n"
+                    + "    </characteristic>\n"
+                    + "</wap-provisioningdoc>\n";
 
     @Before
     public void setUp() throws Exception {
@@ -84,11 +108,13 @@ public class ImsEntitlementPollingServiceTest {
         mService.onBind(null);
         mService.injectImsEntitlementApi(mImsEntitlementApi);
         mScheduler = mContext.getSystemService(JobScheduler.class);
+        mScheduler.cancelAll();
         setActivedSubscription();
         setupImsUtils();
         setJobParameters();
         setWfcEnabledByUser(true);
         setImsProvisioningBool(false);
+        new EntitlementConfiguration(mContext, SUB_ID).reset();
     }
 
     @Test
@@ -137,9 +163,10 @@ public class ImsEntitlementPollingServiceTest {
         mService.onStartJob(mJobParameters);
         mService.mOngoingTask.get(); // wait for job finish.
 
-        verify(mImsUtils).setVolteProvisioned(false);
-        verify(mImsUtils).setVowifiProvisioned(false);
-        verify(mImsUtils).setSmsoipProvisioned(false);
+        verify(mImsUtils).setProvisioned(ImmutableMap.of(
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, false,
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, false,
+                ImsUtils.KEY_SMS_OVER_IP_ENABLED, false));
     }
 
     @Test
@@ -155,9 +182,112 @@ public class ImsEntitlementPollingServiceTest {
         mService.onStartJob(mJobParameters);
         mService.mOngoingTask.get(); // wait for job finish.
 
-        verify(mImsUtils).setVolteProvisioned(true);
-        verify(mImsUtils).setVowifiProvisioned(true);
-        verify(mImsUtils).setSmsoipProvisioned(true);
+        verify(mImsUtils).setProvisioned(ImmutableMap.of(
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, true,
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, true,
+                ImsUtils.KEY_SMS_OVER_IP_ENABLED, true));
+    }
+
+    @Test
+    public void doEntitlementCheck_onlyVowifiChangedInImsStack_setVowifiProvisionedOnly()
+            throws Exception {
+        setImsProvisioningBool(true);
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(
+                getImsEntitlementResult(sEnableVoWiFi, sEnableVoLte, sEnableSmsoverip),
+                getImsEntitlementResult(sDisableVoWiFi, sEnableVoLte, sEnableSmsoverip));
+
+        for (int i = 0; i < 2; i++) {
+            mService.onStartJob(mJobParameters);
+            mService.mOngoingTask.get(); // wait for job finish.
+        }
+
+        verify(mImsUtils).setProvisioned(
+                ImmutableMap.of(ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, false));
+    }
+
+    @Test
+    public void doEntitlementCheck_sameProvisioningAsImsStack_notSetProvisioned()
+            throws Exception {
+        setImsProvisioningBool(true);
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(
+                getImsEntitlementResult(sDisableVoWiFi, sDisableVoLte, sDisableSmsoverip));
+
+        for (int i = 0; i < 2; i++) {
+            mService.onStartJob(mJobParameters);
+            mService.mOngoingTask.get(); // wait for job finish.
+        }
+
+        verify(mImsUtils, times(1)).setProvisioned(any());
+    }
+
+    @Test
+    public void doEntitlementCheck_lastPushFailed_setProvisionedAgain() throws Exception {
+        setImsProvisioningBool(true);
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(
+                getImsEntitlementResult(sDisableVoWiFi, sDisableVoLte, sDisableSmsoverip));
+        when(mImsUtils.setProvisioned(any())).thenAnswer(invocation -> {
+            Map<Integer, Boolean> values = invocation.getArgument(0);
+            values.forEach((key, value) -> {
+                if (key != ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE) {
+                    mImsProvisioning.put(key, value);
+                }
+            });
+            return Maps.transformEntries(values,
+                    (key, value) -> key != ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE);
+        });
+
+        for (int i = 0; i < 2; i++) {
+            mService.onStartJob(mJobParameters);
+            mService.mOngoingTask.get(); // wait for job finish.
+        }
+
+        verify(mImsUtils).setProvisioned(
+                ImmutableMap.of(ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, false));
+    }
+
+    @Test
+    public void doEntitlementCheck_imsProvisioningResetSinceLastPush_setAllProvisionedAgain()
+            throws Exception {
+        setImsProvisioningBool(true);
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(
+                getImsEntitlementResult(sDisableVoWiFi, sDisableVoLte, sDisableSmsoverip));
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+        // The IMS stack is restarted.
+        mImsProvisioning.clear();
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        verify(mImsUtils, times(2)).setProvisioned(ImmutableMap.of(
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, false,
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, false,
+                ImsUtils.KEY_SMS_OVER_IP_ENABLED, false));
+    }
+
+    @Test
+    public void doEntitlementCheck_nullResultThenDisabled_setAllProvisionedAgain()
+            throws Exception {
+        setImsProvisioningBool(true);
+        EntitlementResult disabledResult =
+                getImsEntitlementResult(sDisableVoWiFi, sDisableVoLte, sDisableSmsoverip);
+        when(mImsEntitlementApi.checkEntitlementStatus())
+                .thenReturn(null, disabledResult, disabledResult);
+
+        for (int i = 0; i < 3; i++) {
+            mService.onStartJob(mJobParameters);
+            mService.mOngoingTask.get(); // wait for job finish.
+        }
+
+        verify(mImsUtils).setProvisioned(ImmutableMap.of(
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, true,
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, true,
+                ImsUtils.KEY_SMS_OVER_IP_ENABLED, true));
+        verify(mImsUtils).setProvisioned(ImmutableMap.of(
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, false,
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, false,
+                ImsUtils.KEY_SMS_OVER_IP_ENABLED, false));
+        verify(mImsUtils, times(2)).setProvisioned(any());
     }
 
     @Test
@@ -170,9 +300,7 @@ public class ImsEntitlementPollingServiceTest {
         mService.onStartJob(mJobParameters);
         mService.mOngoingTask.get(); // wait for job finish.
 
-        verify(mImsUtils, never()).setVolteProvisioned(anyBoolean());
-        verify(mImsUtils, never()).setVowifiProvisioned(anyBoolean());
-        verify(mImsUtils, never()).setSmsoipProvisioned(anyBoolean());
+        verify(mImsUtils, never()).setProvisioned(any());
         assertThat(
                 mScheduler.getPendingJob(
                         jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID)))
@@ -188,15 +316,91 @@ public class ImsEntitlementPollingServiceTest {
         mService.onStartJob(mJobParameters);
         mService.mOngoingTask.get(); // wait for job finish.
 
-        verify(mImsUtils, never()).setVolteProvisioned(anyBoolean());
-        verify(mImsUtils, never()).setVowifiProvisioned(anyBoolean());
-        verify(mImsUtils, never()).setSmsoipProvisioned(anyBoolean());
+        verify(mImsUtils, never()).setProvisioned(any());
         assertThat(
                 mScheduler.getPendingJob(
                         jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID)))
                 .isNotNull();
     }
 
+    @Test
+    public void doEntitlementCheck_ImsEntitlementRetryBudgetRanOut_scheduleValidityJob()
+            throws Exception {
+        setImsProvisioningBool(true);
+        new EntitlementConfiguration(mContext, SUB_ID).update(RAW_XML_VALIDITY_ONE_DAY);
+        EntitlementResult entitlementResult =
+                EntitlementResult.builder().setRetryAfterSeconds(120).build();
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(entitlementResult);
+
+        // The first query and then all the retries of the budget get HTTP 503.
+        for (int i = 0; i < 7; i++) {
+            mService.onStartJob(mJobParameters);
+            mService.mOngoingTask.get(); // wait for job finish.
+            JobInfo job = mScheduler.getPendingJob(
+                    jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID));
+            mJobParameters.getExtras().putInt(
+                    JobManager.EXTRA_RETRY_COUNT,
+                    job.getExtras().getInt(JobManager.EXTRA_RETRY_COUNT));
+        }
+
+        verify(mImsUtils, never()).setProvisioned(any());
+        JobInfo job = mScheduler.getPendingJob(
+                jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID));
+        assertThat(job.getExtras().getInt(JobManager.EXTRA_RETRY_COUNT)).isEqualTo(0);
+        assertThat(job.getMinLatencyMillis()).isGreaterThan(Duration.ofHours(12).toMillis());
+    }
+
+    @Test
+    public void doEntitlementCheck_nullResult_rescheduleJob() throws Exception {
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(null);
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        JobInfo job = mScheduler.getPendingJob(
+                jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID));
+        assertThat(job).isNotNull();
+        assertThat(job.getExtras().getInt(JobManager.EXTRA_RETRY_COUNT)).isEqualTo(1);
+    }
+
+    @Test
+    public void doEntitlementCheck_nullResultRetryBudgetRanOut_notRescheduleJob()
+            throws Exception {
+        mJobParameters.getExtras().putInt(JobManager.EXTRA_RETRY_COUNT, 100);
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenReturn(null);
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        assertThat(
+                mScheduler.getPendingJob(
+                        jobIdWithSubId(JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID, SUB_ID)))
+                .isNull();
+    }
+
+    @Test
+    public void onStopJob_interruptQueryAndNotApplyResult() throws Exception {
+        CountDownLatch queryStarted = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        when(mImsEntitlementApi.checkEntitlementStatus()).thenAnswer(invocation -> {
+            queryStarted.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            return getEntitlementResult(sDisableVoWiFi);
+        });
+
+        mService.onStartJob(mJobParameters);
+        queryStarted.await();
+        mService.onStopJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        assertThat(interrupted.get()).isTrue();
+        verify(mImsUtils, never()).disableWfc();
+    }
+
     @Test
     public void enqueueJob_hasJob() {
         ImsEntitlementPollingService.enqueueJob(mContext, SUB_ID, 0);
@@ -209,9 +413,12 @@ public class ImsEntitlementPollingServiceTest {
 
     private void setActivedSubscription() {
         when(mSubscriptionInfo.getSimSlotIndex()).thenReturn(SLOT_ID);
-        when(mSubscriptionManager.getActiveSubscriptionInfo(SUB_ID)).thenReturn(mSubscriptionInfo);
+        when(mSubscriptionInfo.getSubscriptionId()).thenReturn(SUB_ID);
+        when(mSubscriptionManager.getActiveSubscriptionInfoList())
+                .thenReturn(ImmutableList.of(mSubscriptionInfo));
         when(mContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE))
                 .thenReturn(mSubscriptionManager);
+        TelephonyUtils.invalidateSubscriptionsCache();
     }
 
     private void setupImsUtils() throws Exception {
@@ -220,6 +427,14 @@ public class ImsEntitlementPollingServiceTest {
         Field field = ImsUtils.class.getDeclaredField("sInstances");
         field.setAccessible(true);
         field.set(null, imsUtilsInstances);
+        mImsProvisioning.clear();
+        when(mImsUtils.getProvisioned(anyInt())).thenAnswer(
+                invocation -> Optional.ofNullable(mImsProvisioning.get(invocation.getArgument(0))));
+        when(mImsUtils.setProvisioned(any())).thenAnswer(invocation -> {
+            Map<Integer, Boolean> values = invocation.getArgument(0);
+            mImsProvisioning.putAll(values);
+            return Maps.transformValues(values, value -> true);
+        });
     }
 
     private void setWfcEnabledByUser(boolean isEnabled) {
@@ -241,6 +456,7 @@ public class ImsEntitlementPollingServiceTest {
                 provisioning
         );
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
+        TelephonyUtils.invalidateCarrierConfigCache(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
         when(mContext.getSystemService(CarrierConfigManager.class))
                 .thenReturn(mCarrierConfigManager);
     }
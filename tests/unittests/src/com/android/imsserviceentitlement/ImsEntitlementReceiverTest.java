@@ -34,16 +34,20 @@ import android.os.PersistableBundle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
+import com.android.imsserviceentitlement.fcm.FcmSenderIdIndex;
 import com.android.imsserviceentitlement.job.JobManager;
 import com.android.imsserviceentitlement.utils.Executors;
 import com.android.imsserviceentitlement.utils.TelephonyUtils;
 
+import com.google.common.collect.ImmutableList;
+
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -59,6 +63,7 @@ import java.lang.reflect.Field;
 public class ImsEntitlementReceiverTest {
     private static final int SUB_ID = 1;
     private static final int LAST_SUB_ID = 2;
+    private static final String SENDER_ID = "SENDER_ID";
     private static final String RAW_XML =
             "<wap-provisioningdoc version=\"1.1\">\n"
                     + "    <characteristic type=\"APPLICATION\">\n"
@@ -92,6 +97,8 @@ public class ImsEntitlementReceiverTest {
     @Mock private UserManager mMockUserManager;
     @Mock private CarrierConfigManager mCarrierConfigManager;
     @Mock private JobManager mMockJobManager;
+    @Mock private SubscriptionManager mSubscriptionManager;
+    @Mock private SubscriptionInfo mSubscriptionInfo;
 
     @Spy private final Context mContext = ApplicationProvider.getApplicationContext();
 
@@ -239,6 +246,27 @@ public class ImsEntitlementReceiverTest {
         verify(mMockJobManager, never()).queryEntitlementStatusOnceNetworkReady();
     }
 
+    @Test
+    public void onReceive_imsProvisioningNotRequired_fcmSenderIdIndexRebuilt() {
+        PersistableBundle carrierConfig = new PersistableBundle();
+        carrierConfig.putString(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING, SENDER_ID);
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
+        when(mSubscriptionInfo.getSubscriptionId()).thenReturn(SUB_ID);
+        when(mSubscriptionManager.getActiveSubscriptionInfoList())
+                .thenReturn(ImmutableList.of(mSubscriptionInfo));
+        when(mContext.getSystemService(SubscriptionManager.class))
+                .thenReturn(mSubscriptionManager);
+
+        mReceiver.onReceive(mContext, getCarrierConfigChangedIntent(SUB_ID, /* slotId= */ 0));
+
+        verify(mMockJobManager, never()).queryEntitlementStatusOnceNetworkReady();
+        verify(mSubscriptionManager).getActiveSubscriptionInfoList();
+        assertThat(FcmSenderIdIndex.getSubIds(mContext, SENDER_ID)).containsExactly(SUB_ID);
+        // Not built again on use.
+        verify(mSubscriptionManager, times(1)).getActiveSubscriptionInfoList();
+    }
+
     @Test
     public void isBootUp_compareWithLastBootCount_returnResult() {
         int currentBootCount =
@@ -267,6 +295,7 @@ public class ImsEntitlementReceiverTest {
                 .thenReturn(mCarrierConfigManager);
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
         when(mCarrierConfigManager.getConfigForSubId(LAST_SUB_ID)).thenReturn(carrierConfig);
+        TelephonyUtils.invalidateCarrierConfigCache(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
     }
 
     private void setLastSubId(int subId, int slotId) {
@@ -24,6 +24,7 @@ import static com.android.imsserviceentitlement.ImsServiceEntitlementStatsLog.IM
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -280,6 +281,73 @@ public class WfcActivationControllerTest {
         verify(mMockActivationUi).setResultAndFinish(Activity.RESULT_OK);
     }
 
+    @Test
+    public void evaluateEntitlementStatus_cachedResult_notQueryAgain() {
+        EntitlementResult entitlementResult =
+                EntitlementResult.builder()
+                        .setVowifiStatus(
+                                Ts43VowifiStatus.builder()
+                                        .setEntitlementStatus(EntitlementStatus.ENABLED)
+                                        .setTcStatus(TcStatus.AVAILABLE)
+                                        .setAddrStatus(AddrStatus.AVAILABLE)
+                                        .setProvStatus(ProvStatus.PROVISIONED)
+                                        .build())
+                        .build();
+        when(mMockActivationApi.getCachedEntitlementStatus()).thenReturn(entitlementResult);
+        setNetworkConnected(false);
+        buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
+
+        mWfcActivationController.evaluateEntitlementStatus();
+
+        verify(mMockActivationApi, never()).checkEntitlementStatus();
+        verify(mMockActivationUi).setResultAndFinish(Activity.RESULT_OK);
+    }
+
+    @Test
+    public void evaluateEntitlementStatus_cachedResultNeedsWebFlow_notUsed() {
+        EntitlementResult entitlementResult =
+                EntitlementResult.builder()
+                        .setVowifiStatus(
+                                Ts43VowifiStatus.builder()
+                                        .setEntitlementStatus(EntitlementStatus.DISABLED)
+                                        .setTcStatus(TcStatus.NOT_AVAILABLE)
+                                        .setAddrStatus(AddrStatus.NOT_AVAILABLE)
+                                        .build())
+                        .setEmergencyAddressWebUrl(EMERGENCY_ADDRESS_WEB_URL)
+                        .setEmergencyAddressWebData(EMERGENCY_ADDRESS_WEB_DATA)
+                        .build();
+        when(mMockActivationApi.getCachedEntitlementStatus()).thenReturn(entitlementResult);
+        setNetworkConnected(false);
+        buildActivity(ActivityConstants.LAUNCH_APP_ACTIVATE);
+
+        mWfcActivationController.evaluateEntitlementStatus();
+
+        verify(mMockActivationUi, never()).showWebview(any(), any());
+    }
+
+    @Test
+    public void evaluateEntitlementStatus_updateFlowWithCachedResult_notUsed() {
+        EntitlementResult entitlementResult =
+                EntitlementResult.builder()
+                        .setVowifiStatus(
+                                Ts43VowifiStatus.builder()
+                                        .setEntitlementStatus(EntitlementStatus.ENABLED)
+                                        .setTcStatus(TcStatus.AVAILABLE)
+                                        .setAddrStatus(AddrStatus.AVAILABLE)
+                                        .setProvStatus(ProvStatus.PROVISIONED)
+                                        .build())
+                        .setEmergencyAddressWebUrl(EMERGENCY_ADDRESS_WEB_URL)
+                        .setEmergencyAddressWebData(EMERGENCY_ADDRESS_WEB_DATA)
+                        .build();
+        when(mMockActivationApi.getCachedEntitlementStatus()).thenReturn(entitlementResult);
+        setNetworkConnected(false);
+        buildActivity(ActivityConstants.LAUNCH_APP_UPDATE);
+
+        mWfcActivationController.evaluateEntitlementStatus();
+
+        verify(mMockActivationUi, never()).showWebview(any(), any());
+    }
+
     @Test
     public void handleEntitlementStatusForActivation_isServerDataMissingTrue_showWebview() {
         EntitlementResult entitlementResult =
@@ -25,6 +25,8 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration.ClientBehavior;
 
+import com.google.common.base.Strings;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -140,4 +142,87 @@ public class EntitlementConfigurationTest {
 
         assertThat(mConfiguration.getVersion()).isEqualTo("0");
     }
+
+    @Test
+    public void updateConfigurations_newInstance_verifyConfigs() {
+        mConfiguration.update(RAW_XML);
+
+        EntitlementConfiguration configuration = new EntitlementConfiguration(mContext, SUB_ID);
+
+        assertThat(configuration.getVoWifiStatus()).isEqualTo(1);
+        assertThat(configuration.getVersion()).isEqualTo("1");
+
+        configuration.reset();
+
+        assertThat(new EntitlementConfiguration(mContext, SUB_ID).entitlementValidation())
+                .isEqualTo(ClientBehavior.NEEDS_TO_RESET);
+    }
+
+    @Test
+    public void updateConfigurations_verifySnapshot() {
+        mConfiguration.update(RAW_XML);
+
+        EntitlementSnapshot snapshot = mConfiguration.getSnapshot();
+
+        assertThat(snapshot.version()).isEqualTo(1);
+        assertThat(snapshot.versValidity()).isEqualTo(1728000);
+        assertThat(snapshot.token()).isEqualTo("kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX");
+        assertThat(snapshot.tokenValidity()).isEqualTo(3600);
+        assertThat(snapshot.volteStatus()).isEqualTo(0);
+        assertThat(snapshot.vowifiStatus()).isEqualTo(1);
+        assertThat(snapshot.smsOverIpStatus()).isEqualTo(2);
+    }
+
+    @Test
+    public void updateConfigurations_sameDocument_notParsedAgain() {
+        mConfiguration.update(RAW_XML);
+        EntitlementSnapshot snapshot = mConfiguration.getSnapshot();
+
+        mConfiguration.update(RAW_XML);
+
+        assertThat(mConfiguration.getSnapshot()).isSameInstanceAs(snapshot);
+        assertThat(mConfiguration.getToken().get()).isEqualTo("kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX");
+    }
+
+    @Test
+    public void updateConfigurations_longDocumentChangedAtEnd_parsedAgain() {
+        // Longer than the hash buffer, with multi-byte chars straddling its boundaries.
+        String comment = "<!-- " + Strings.repeat("\u00e9\u4e2d\ud83d\ude00", 1000) + " -->\n";
+        mConfiguration.update(comment + RAW_XML);
+
+        mConfiguration.update(comment + RAW_XML.replace(
+                "<parm name=\"EntitlementStatus\" value=\"1\"/>",
+                "<parm name=\"EntitlementStatus\" value=\"0\"/>"));
+
+        assertThat(mConfiguration.getVoWifiStatus()).isEqualTo(0);
+    }
+
+    @Test
+    public void updateConfigurations_sameDocumentAfterReset_parsedAgain() {
+        mConfiguration.update(RAW_XML);
+        mConfiguration.reset();
+
+        mConfiguration.update(RAW_XML);
+
+        assertThat(mConfiguration.getVoWifiStatus()).isEqualTo(1);
+    }
+
+    @Test
+    public void updateConfigurations_byAnotherInstance_readUpdatedConfigs() {
+        EntitlementConfiguration configuration = new EntitlementConfiguration(mContext, SUB_ID);
+        assertThat(configuration.getVoWifiStatus()).isEqualTo(2);
+
+        mConfiguration.update(RAW_XML);
+
+        assertThat(configuration.getVoWifiStatus()).isEqualTo(1);
+        assertThat(configuration.getToken().get()).isEqualTo("kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX");
+    }
+
+    @Test
+    public void updateConfigurations_reset_snapshotIsEmpty() {
+        mConfiguration.update(RAW_XML);
+        mConfiguration.reset();
+
+        assertThat(mConfiguration.getSnapshot()).isEqualTo(EntitlementSnapshot.empty());
+    }
 }
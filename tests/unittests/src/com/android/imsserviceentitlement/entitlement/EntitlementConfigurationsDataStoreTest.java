@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.utils.WriteCoalescer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+@RunWith(AndroidJUnit4.class)
+public class EntitlementConfigurationsDataStoreTest {
+    private static final String RAW_XML =
+            "<wap-provisioningdoc version=\"1.1\">\n"
+                    + "    <characteristic type=\"VERS\">\n"
+                    + "        <parm name=\"version\" value=\"1\"/>\n"
+                    + "        <parm name=\"validity\" value=\"1728000\"/>\n"
+                    + "    </characteristic>\n"
+                    + "    <characteristic type=\"APPLICATION\">\n"
+                    + "        <parm name=\"AppID\" value=\"ap2004\"/>\n"
+                    + "        <parm name=\"EntitlementStatus\" value=\"1\"/>\n"
+                    + "    </characteristic>\n"
+                    + "</wap-provisioningdoc>\n";
+    private static final int SUB_ID = 99;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = ApplicationProvider.getApplicationContext();
+        deleteStoredData();
+    }
+
+    @After
+    public void tearDown() {
+        deleteStoredData();
+    }
+
+    @Test
+    public void set_newInstance_readFromRecord() {
+        EntitlementSnapshot snapshot =
+                EntitlementSnapshot.builder()
+                        .setVersion(1)
+                        .setVersValidity(1728000)
+                        .setToken("kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX")
+                        .setVowifiStatus(0)
+                        .setVowifiServiceFlowUrl("https://example.com")
+                        .setVowifiServiceFlowUserData("PostData=U6%2FbQ%2BEP&req_locale=é")
+                        .build();
+        EntitlementConfigurationsDataStore dataStore =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID);
+
+        dataStore.set(snapshot, new byte[] {1, 2, 3});
+        WriteCoalescer.awaitDurable();
+
+        EntitlementConfigurationsDataStore newDataStore =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID);
+        assertThat(newDataStore.get().get()).isEqualTo(snapshot);
+        assertThat(newDataStore.getQueryTimeMillis()).isEqualTo(dataStore.getQueryTimeMillis());
+        assertThat(newDataStore.getDocumentHash()).isEqualTo(new byte[] {1, 2, 3});
+    }
+
+    @Test
+    public void get_nothingStored_returnsEmpty() {
+        EntitlementConfigurationsDataStore dataStore =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID);
+
+        assertThat(dataStore.get().isPresent()).isFalse();
+        assertThat(dataStore.getQueryTimeMillis()).isEqualTo(0);
+    }
+
+    @Test
+    public void get_legacyPreference_migrated() {
+        setLegacyPreference();
+
+        EntitlementConfigurationsDataStore dataStore =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID);
+
+        assertThat(dataStore.get().get().version()).isEqualTo(1);
+        assertThat(dataStore.get().get().vowifiStatus()).isEqualTo(1);
+        assertThat(dataStore.getQueryTimeMillis()).isEqualTo(1000);
+        assertThat(new EntitlementConfigurationsDataStore(mContext, SUB_ID).get().get())
+                .isEqualTo(dataStore.get().get());
+    }
+
+    @Test
+    public void set_legacyPreferenceNotLoaded_legacyPreferenceDiscarded() {
+        setLegacyPreference();
+        EntitlementConfigurationsDataStore dataStore =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID);
+
+        dataStore.set(EntitlementSnapshot.empty(), null);
+        WriteCoalescer.awaitDurable();
+
+        assertThat(new EntitlementConfigurationsDataStore(mContext, SUB_ID).get().get())
+                .isEqualTo(EntitlementSnapshot.empty());
+        assertThat(getLegacyPreference().contains("XML_DOCUMENT")).isFalse();
+    }
+
+    @Test
+    public void get_recordWithLengthBeyondEnd_discarded() throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(getRecordFile()))) {
+            out.writeInt(2); // format version
+            out.writeLong(1000); // query time
+            out.writeInt(1); // VERS.version
+            out.writeLong(1728000); // VERS.validity
+            out.writeInt(Integer.MAX_VALUE); // length of TOKEN.token
+            out.writeBytes("token");
+        }
+
+        EntitlementConfigurationsDataStore dataStore =
+                new EntitlementConfigurationsDataStore(mContext, SUB_ID);
+
+        assertThat(dataStore.get().isPresent()).isFalse();
+        assertThat(dataStore.getQueryTimeMillis()).isEqualTo(0);
+    }
+
+    private void setLegacyPreference() {
+        getLegacyPreference()
+                .edit()
+                .putString("XML_DOCUMENT", RAW_XML)
+                .putLong("QUERY_TIME_MILLIS", 1000)
+                .commit();
+    }
+
+    private SharedPreferences getLegacyPreference() {
+        return mContext.getSharedPreferences(
+                "ENTITLEMENT_CHARACTERISTICS_" + SUB_ID, Context.MODE_PRIVATE);
+    }
+
+    private File getRecordFile() {
+        return new File(mContext.getFilesDir(), "entitlement_configurations_" + SUB_ID);
+    }
+
+    private void deleteStoredData() {
+        getRecordFile().delete();
+        mContext.deleteSharedPreferences("ENTITLEMENT_CHARACTERISTICS_" + SUB_ID);
+    }
+}
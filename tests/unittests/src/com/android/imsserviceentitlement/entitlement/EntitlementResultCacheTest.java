@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.entitlement;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+@RunWith(AndroidJUnit4.class)
+public class EntitlementResultCacheTest {
+    private static final int SUB_ID = 1;
+    private static final Duration TTL = Duration.ofSeconds(60);
+
+    private final EntitlementResult mResult = EntitlementResult.builder().build();
+
+    @Before
+    public void setUp() {
+        EntitlementResultCache.clear();
+        setTime(0);
+    }
+
+    @After
+    public void tearDown() {
+        EntitlementResultCache.sClock = Clock.systemUTC();
+        EntitlementResultCache.clear();
+    }
+
+    @Test
+    public void get_withinTtl_returnsResult() {
+        EntitlementResultCache.put(SUB_ID, mResult, TTL);
+        setTime(59);
+
+        assertThat(EntitlementResultCache.get(SUB_ID)).isSameInstanceAs(mResult);
+    }
+
+    @Test
+    public void get_afterTtl_returnsNull() {
+        EntitlementResultCache.put(SUB_ID, mResult, TTL);
+        setTime(60);
+
+        assertThat(EntitlementResultCache.get(SUB_ID)).isNull();
+    }
+
+    @Test
+    public void get_otherSubId_returnsNull() {
+        EntitlementResultCache.put(SUB_ID, mResult, TTL);
+
+        assertThat(EntitlementResultCache.get(SUB_ID + 1)).isNull();
+    }
+
+    @Test
+    public void put_zeroTtl_removesCachedResult() {
+        EntitlementResultCache.put(SUB_ID, mResult, TTL);
+
+        EntitlementResultCache.put(SUB_ID, mResult, Duration.ZERO);
+
+        assertThat(EntitlementResultCache.get(SUB_ID)).isNull();
+    }
+
+    @Test
+    public void invalidate_returnsNull() {
+        EntitlementResultCache.put(SUB_ID, mResult, TTL);
+
+        EntitlementResultCache.invalidate(SUB_ID);
+
+        assertThat(EntitlementResultCache.get(SUB_ID)).isNull();
+    }
+
+    private static void setTime(long epochSecond) {
+        EntitlementResultCache.sClock =
+                Clock.fixed(Instant.ofEpochSecond(epochSecond), ZoneOffset.UTC);
+    }
+}
@@ -18,6 +18,8 @@ package com.android.imsserviceentitlement.fcm;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.app.job.JobParameters;
@@ -32,6 +34,7 @@ import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.imsserviceentitlement.job.JobManager;
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
 
 import com.google.firebase.iid.FirebaseInstanceId;
 import com.google.firebase.messaging.FirebaseMessaging;
@@ -47,6 +50,8 @@ import org.mockito.junit.MockitoRule;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(AndroidJUnit4.class)
 public class FcmRegistrationServiceTest {
@@ -58,25 +63,31 @@ public class FcmRegistrationServiceTest {
     @Mock private FirebaseInstanceId mInstanceID;
     @Mock private SubscriptionManager mSubscriptionManager;
     @Mock private SubscriptionInfo mSubscriptionInfo;
+    @Mock private SubscriptionInfo mOtherSubscriptionInfo;
     @Mock private CarrierConfigManager mCarrierConfigManager;
 
     private FcmRegistrationService mService;
     private JobScheduler mScheduler;
+    private final List<SubscriptionInfo> mSubscriptionInfoList = new ArrayList<>();
 
     private static final int SUB_ID = 1;
     private static final String TOKEN = "TEST_TOKEN";
     private static final String SENDER_ID = "SENDER_ID";
+    private static final int OTHER_SUB_ID = 2;
+    private static final String OTHER_TOKEN = "OTHER_TEST_TOKEN";
+    private static final String OTHER_SENDER_ID = "OTHER_SENDER_ID";
 
     @Before
     public void setup() throws Exception {
         setActiveSubscriptionInfoList();
-        setFcmSenderIdString(SENDER_ID);
+        setFcmSenderIdString(SUB_ID, SENDER_ID);
         mService = new FcmRegistrationService();
         mService.attachBaseContext(mContext);
         mService.onCreate();
         mService.onBind(null);
         mScheduler = mContext.getSystemService(JobScheduler.class);
         FcmTokenStore.setToken(mContext, SUB_ID, "");
+        FcmTokenStore.setToken(mContext, OTHER_SUB_ID, "");
     }
 
     @Test
@@ -98,30 +109,96 @@ public class FcmRegistrationServiceTest {
         assertThat(FcmTokenStore.getToken(mContext, SUB_ID)).isEqualTo(TOKEN);
     }
 
+    @Test
+    public void onStartJob_subIdsShareSenderId_getTokenOnce() throws Exception {
+        addActiveSubscription(mOtherSubscriptionInfo, OTHER_SUB_ID, /* slotIndex= */ 1);
+        setFcmSenderIdString(OTHER_SUB_ID, SENDER_ID);
+        when(mInstanceID.getToken(SENDER_ID, FirebaseMessaging.INSTANCE_ID_SCOPE))
+                .thenReturn(TOKEN);
+        mService.setFakeInstanceID(mInstanceID);
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        assertThat(FcmTokenStore.getToken(mContext, SUB_ID)).isEqualTo(TOKEN);
+        assertThat(FcmTokenStore.getToken(mContext, OTHER_SUB_ID)).isEqualTo(TOKEN);
+        verify(mInstanceID, times(1)).getToken(SENDER_ID, FirebaseMessaging.INSTANCE_ID_SCOPE);
+    }
+
+    @Test
+    public void onStartJob_subIdsWithDifferentSenderIds_getTokenForEach() throws Exception {
+        addActiveSubscription(mOtherSubscriptionInfo, OTHER_SUB_ID, /* slotIndex= */ 1);
+        setFcmSenderIdString(OTHER_SUB_ID, OTHER_SENDER_ID);
+        when(mInstanceID.getToken(SENDER_ID, FirebaseMessaging.INSTANCE_ID_SCOPE))
+                .thenReturn(TOKEN);
+        when(mInstanceID.getToken(OTHER_SENDER_ID, FirebaseMessaging.INSTANCE_ID_SCOPE))
+                .thenReturn(OTHER_TOKEN);
+        mService.setFakeInstanceID(mInstanceID);
+
+        mService.onStartJob(mJobParameters);
+        mService.mOngoingTask.get(); // wait for job finish.
+
+        assertThat(FcmTokenStore.getToken(mContext, SUB_ID)).isEqualTo(TOKEN);
+        assertThat(FcmTokenStore.getToken(mContext, OTHER_SUB_ID)).isEqualTo(OTHER_TOKEN);
+    }
+
+    @Test
+    public void onHandleWork_interruptedWhileGettingToken_keepInterruptedStatus()
+            throws Exception {
+        CountDownLatch tokenRequested = new CountDownLatch(1);
+        CountDownLatch tokenReleased = new CountDownLatch(1);
+        when(mInstanceID.getToken(SENDER_ID, FirebaseMessaging.INSTANCE_ID_SCOPE))
+                .thenAnswer(invocation -> {
+                    tokenRequested.countDown();
+                    tokenReleased.await();
+                    return TOKEN;
+                });
+        mService.setFakeInstanceID(mInstanceID);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread worker = new Thread(() -> {
+            mService.onHandleWork(mJobParameters);
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+
+        worker.start();
+        tokenRequested.await();
+        worker.interrupt();
+        worker.join();
+        tokenReleased.countDown();
+
+        assertThat(interrupted.get()).isTrue();
+    }
+
     @Test
     public void onStopJob_alwaysRetunedTrue() {
         assertThat(mService.onStopJob(mJobParameters)).isTrue();
     }
 
     private void setActiveSubscriptionInfoList() {
-        when(mSubscriptionInfo.getSimSlotIndex()).thenReturn(0);
-        when(mSubscriptionManager.getActiveSubscriptionInfo(SUB_ID)).thenReturn(mSubscriptionInfo);
-        when(mSubscriptionInfo.getSubscriptionId()).thenReturn(SUB_ID);
-        List<SubscriptionInfo> mSubscriptionInfoList = new ArrayList<>();
-        mSubscriptionInfoList.add(mSubscriptionInfo);
+        when(mContext.getSystemService(SubscriptionManager.class)).thenReturn(mSubscriptionManager);
+        when(mContext.getSystemService(CarrierConfigManager.class))
+                .thenReturn(mCarrierConfigManager);
+        addActiveSubscription(mSubscriptionInfo, SUB_ID, /* slotIndex= */ 0);
+    }
+
+    private void addActiveSubscription(
+            SubscriptionInfo subscriptionInfo, int subId, int slotIndex) {
+        when(subscriptionInfo.getSimSlotIndex()).thenReturn(slotIndex);
+        when(mSubscriptionManager.getActiveSubscriptionInfo(subId)).thenReturn(subscriptionInfo);
+        when(subscriptionInfo.getSubscriptionId()).thenReturn(subId);
+        mSubscriptionInfoList.add(subscriptionInfo);
         when(mSubscriptionManager.getActiveSubscriptionInfoList())
                 .thenReturn(mSubscriptionInfoList);
-        when(mContext.getSystemService(SubscriptionManager.class)).thenReturn(mSubscriptionManager);
+        TelephonyUtils.invalidateSubscriptionsCache();
     }
 
-    private void setFcmSenderIdString(String senderId) {
+    private void setFcmSenderIdString(int subId, String senderId) {
         PersistableBundle carrierConfig = new PersistableBundle();
         carrierConfig.putString(
                 CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING,
                 senderId
         );
-        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
-        when(mContext.getSystemService(CarrierConfigManager.class))
-                .thenReturn(mCarrierConfigManager);
+        when(mCarrierConfigManager.getConfigForSubId(subId)).thenReturn(carrierConfig);
+        TelephonyUtils.invalidateCarrierConfigCache(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
     }
 }
@@ -16,7 +16,14 @@
 
 package com.android.imsserviceentitlement.fcm;
 
+import static com.android.imsserviceentitlement.fcm.FcmPushCoalescer.COALESCING_WINDOW;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -29,7 +36,11 @@ import android.telephony.SubscriptionManager;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.imsserviceentitlement.entitlement.EntitlementConfiguration;
+import com.android.imsserviceentitlement.entitlement.EntitlementResult;
+import com.android.imsserviceentitlement.entitlement.EntitlementResultCache;
 import com.android.imsserviceentitlement.job.JobManager;
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
 import com.android.libraries.entitlement.ServiceEntitlement;
 
 import org.junit.Before;
@@ -41,6 +52,9 @@ import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -64,6 +78,13 @@ public class FcmServiceTest {
     private static final String TIME_STAMP = "2019-01-29T13:15:31-08:00";
     private static final String SENDER_ID = "SENDER_ID";
     private static final int SUB_ID = 1;
+    private static final String RAW_XML =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "  <characteristic type=\"VERS\">"
+                    + "    <parm name=\"version\" value=\"1\"/>"
+                    + "    <parm name=\"validity\" value=\"1728000\"/>"
+                    + "  </characteristic>"
+                    + "</wap-provisioningdoc>";
 
     @Before
     public void setup() throws Exception {
@@ -73,6 +94,8 @@ public class FcmServiceTest {
         mService.attachBaseContext(mContext);
         mService.onCreate();
         mService.setMockJobManager(mJobManager);
+        new EntitlementConfiguration(mContext, SUB_ID).reset();
+        FcmPushCoalescer.clear();
     }
 
     @Test
@@ -81,7 +104,18 @@ public class FcmServiceTest {
 
         mService.onMessageReceived(SENDER_ID, dataMap);
 
-        verify(mJobManager).queryEntitlementStatusOnceNetworkReady();
+        verify(mJobManager).queryEntitlementStatusOnceNetworkReady(0, COALESCING_WINDOW);
+    }
+
+    @Test
+    public void onMessageReceived_isFcmSupported_invalidateCachedResult() {
+        EntitlementResultCache.put(
+                SUB_ID, EntitlementResult.builder().build(), Duration.ofMinutes(5));
+        Map<String, String> dataMap = setFcmData(DATA_APP_KEY, ServiceEntitlement.APP_VOWIFI);
+
+        mService.onMessageReceived(SENDER_ID, dataMap);
+
+        assertThat(EntitlementResultCache.get(SUB_ID)).isNull();
     }
 
     @Test
@@ -90,7 +124,7 @@ public class FcmServiceTest {
 
         mService.onMessageReceived(SENDER_ID, dataMap);
 
-        verify(mJobManager, never()).queryEntitlementStatusOnceNetworkReady();
+        verify(mJobManager, never()).queryEntitlementStatusOnceNetworkReady(anyInt(), any());
     }
 
     @Test
@@ -100,7 +134,64 @@ public class FcmServiceTest {
 
         mService.onMessageReceived(SENDER_ID, dataMap);
 
-        verify(mJobManager, never()).queryEntitlementStatusOnceNetworkReady();
+        verify(mJobManager, never()).queryEntitlementStatusOnceNetworkReady(anyInt(), any());
+    }
+
+    @Test
+    public void onMessageReceived_otherSenderId_noJobs() {
+        Map<String, String> dataMap = setFcmData(DATA_APP_KEY, ServiceEntitlement.APP_VOWIFI);
+
+        mService.onMessageReceived("OTHER_SENDER_ID", dataMap);
+
+        verify(mJobManager, never()).queryEntitlementStatusOnceNetworkReady(anyInt(), any());
+    }
+
+    @Test
+    public void onMessageReceived_twiceInWindow_scheduleOnceAndReadCarrierConfigOnce() {
+        Map<String, String> dataMap = setFcmData(DATA_APP_KEY, ServiceEntitlement.APP_VOWIFI);
+
+        mService.onMessageReceived(SENDER_ID, dataMap);
+        mService.onMessageReceived(SENDER_ID, dataMap);
+
+        verify(mJobManager).queryEntitlementStatusOnceNetworkReady(0, COALESCING_WINDOW);
+        verify(mSubscriptionManager, times(1)).getActiveSubscriptionInfoList();
+    }
+
+    @Test
+    public void onMessageReceived_afterWindow_scheduleAgain() {
+        Map<String, String> dataMap = setFcmData(DATA_APP_KEY, ServiceEntitlement.APP_VOWIFI);
+        mService.onMessageReceived(SENDER_ID, dataMap);
+        FcmPushCoalescer.sClock = Clock.offset(Clock.systemUTC(), COALESCING_WINDOW);
+
+        try {
+            mService.onMessageReceived(SENDER_ID, dataMap);
+        } finally {
+            FcmPushCoalescer.sClock = Clock.systemUTC();
+        }
+
+        verify(mJobManager, times(2)).queryEntitlementStatusOnceNetworkReady(0, COALESCING_WINDOW);
+    }
+
+    @Test
+    public void onMessageReceived_olderThanStoredDocument_noJobs() {
+        new EntitlementConfiguration(mContext, SUB_ID).update(RAW_XML);
+        Map<String, String> dataMap = setFcmData(DATA_APP_KEY, ServiceEntitlement.APP_VOWIFI);
+
+        mService.onMessageReceived(SENDER_ID, dataMap);
+
+        verify(mJobManager, never()).queryEntitlementStatusOnceNetworkReady(anyInt(), any());
+    }
+
+    @Test
+    public void onMessageReceived_olderThanStoredDocumentWithinClockSkew_queryEntitlementStatus() {
+        new EntitlementConfiguration(mContext, SUB_ID).update(RAW_XML);
+        Map<String, String> dataMap = Map.of(
+                DATA_APP_KEY, ServiceEntitlement.APP_VOWIFI,
+                DATA_TIMESTAMP_KEY, OffsetDateTime.now().minusMinutes(1).toString());
+
+        mService.onMessageReceived(SENDER_ID, dataMap);
+
+        verify(mJobManager).queryEntitlementStatusOnceNetworkReady(0, COALESCING_WINDOW);
     }
 
     private Map<String, String> setFcmData(String dataAppKey, String dataAppValue) {
@@ -126,7 +217,9 @@ public class FcmServiceTest {
                 senderId
         );
         when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
+        TelephonyUtils.invalidateCarrierConfigCache(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
         when(mContext.getSystemService(CarrierConfigManager.class))
                 .thenReturn(mCarrierConfigManager);
+        FcmSenderIdIndex.invalidate();
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.fcm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.fcm.FcmTokenStore.TokenUpdateListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+@RunWith(AndroidJUnit4.class)
+public class FcmTokenStoreTest {
+    @Rule public final MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock private TokenUpdateListener mListener;
+
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+    private static final String TOKEN = "TEST_TOKEN";
+
+    private final Context mContext = ApplicationProvider.getApplicationContext();
+
+    @Before
+    public void setUp() {
+        FcmTokenStore.setToken(mContext, SUB_ID, "");
+        FcmTokenStore.setToken(mContext, OTHER_SUB_ID, "");
+        FcmTokenStore.registerTokenUpdateListener(SUB_ID, mListener);
+    }
+
+    @After
+    public void tearDown() {
+        FcmTokenStore.unregisterTokenUpdateListener(SUB_ID, mListener);
+    }
+
+    @Test
+    public void getToken_notCached_readFromPreference() {
+        FcmTokenStore.setToken(mContext, SUB_ID, TOKEN);
+        FcmTokenStore.clearCache();
+
+        assertThat(FcmTokenStore.getToken(mContext, SUB_ID)).isEqualTo(TOKEN);
+    }
+
+    @Test
+    public void setToken_notifyListenerOfSubId() {
+        FcmTokenStore.setToken(mContext, SUB_ID, TOKEN);
+
+        verify(mListener).onTokenUpdated(SUB_ID, TOKEN);
+    }
+
+    @Test
+    public void setToken_otherSubId_notNotifyListener() {
+        FcmTokenStore.setToken(mContext, OTHER_SUB_ID, TOKEN);
+
+        verify(mListener, never()).onTokenUpdated(anyInt(), anyString());
+    }
+
+    @Test
+    public void setToken_sameToken_notNotifyListener() {
+        FcmTokenStore.unregisterTokenUpdateListener(SUB_ID, mListener);
+        FcmTokenStore.setToken(mContext, SUB_ID, TOKEN);
+        FcmTokenStore.registerTokenUpdateListener(SUB_ID, mListener);
+
+        FcmTokenStore.setToken(mContext, SUB_ID, TOKEN);
+
+        verify(mListener, never()).onTokenUpdated(anyInt(), anyString());
+    }
+}
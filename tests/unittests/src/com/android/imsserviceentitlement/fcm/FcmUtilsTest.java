@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.fcm;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import static org.mockito.Mockito.when;
+
+import android.app.job.JobScheduler;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionManager;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.imsserviceentitlement.job.JobManager;
+import com.android.imsserviceentitlement.utils.TelephonyUtils;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+@RunWith(AndroidJUnit4.class)
+public class FcmUtilsTest {
+    @Rule public final MockitoRule rule = MockitoJUnit.rule();
+
+    @Spy private Context mContext = ApplicationProvider.getApplicationContext();
+
+    @Mock private CarrierConfigManager mCarrierConfigManager;
+
+    private static final int SUB_ID = 1;
+    private static final String TOKEN = "TEST_TOKEN";
+
+    private JobScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        when(mContext.getSystemService(CarrierConfigManager.class))
+                .thenReturn(mCarrierConfigManager);
+        setFcmSenderId("SENDER_ID");
+        FcmTokenStore.setToken(mContext, SUB_ID, "");
+        mScheduler = mContext.getSystemService(JobScheduler.class);
+        mScheduler.cancelAll();
+    }
+
+    @Test
+    public void fetchFcmTokenAsync_tokenAvailable_done() throws Exception {
+        FcmTokenStore.setToken(mContext, SUB_ID, TOKEN);
+
+        ListenableFuture<String> token = FcmUtils.fetchFcmTokenAsync(mContext, SUB_ID);
+
+        assertThat(token.isDone()).isTrue();
+        assertThat(token.get()).isEqualTo(TOKEN);
+    }
+
+    @Test
+    public void fetchFcmTokenAsync_noFcmSenderId_doneWithEmptyToken() throws Exception {
+        setFcmSenderId("");
+
+        ListenableFuture<String> token = FcmUtils.fetchFcmTokenAsync(mContext, SUB_ID);
+
+        assertThat(token.isDone()).isTrue();
+        assertThat(token.get()).isEmpty();
+    }
+
+    @Test
+    public void fetchFcmTokenAsync_tokenUnavailable_doneOnceTokenUpdated() throws Exception {
+        ListenableFuture<String> token = FcmUtils.fetchFcmTokenAsync(mContext, SUB_ID);
+
+        assertThat(token.isDone()).isFalse();
+
+        FcmTokenStore.setToken(mContext, SUB_ID, TOKEN);
+
+        assertThat(token.get(5, SECONDS)).isEqualTo(TOKEN);
+    }
+
+    @Test
+    public void fetchFcmTokenAsync_tokenUpdated_queryEntitlementStatus() throws Exception {
+        ListenableFuture<String> token = FcmUtils.fetchFcmTokenAsync(mContext, SUB_ID);
+
+        FcmTokenStore.setToken(mContext, SUB_ID, TOKEN);
+        token.get(5, SECONDS);
+
+        assertThat(mScheduler.getPendingJob(
+                1000 * SUB_ID + JobManager.QUERY_ENTITLEMENT_STATUS_JOB_ID)).isNotNull();
+    }
+
+    @Test
+    public void fetchFcmTokenAsync_calledTwiceBeforeUpdated_sameFuture() {
+        ListenableFuture<String> first = FcmUtils.fetchFcmTokenAsync(mContext, SUB_ID);
+        ListenableFuture<String> second = FcmUtils.fetchFcmTokenAsync(mContext, SUB_ID);
+
+        assertThat(second).isSameInstanceAs(first);
+    }
+
+    private void setFcmSenderId(String senderId) {
+        PersistableBundle carrierConfig = new PersistableBundle();
+        carrierConfig.putString(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING, senderId);
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
+        TelephonyUtils.invalidateCarrierConfigCache(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    }
+}
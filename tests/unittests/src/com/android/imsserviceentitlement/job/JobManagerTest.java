@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.job;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.time.Duration;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class JobManagerTest {
+    @Rule public final MockitoRule rule = MockitoJUnit.rule();
+
+    @Mock private Random mRandom;
+
+    @Test
+    public void getRetryDelay_growExponentially() {
+        when(mRandom.nextDouble()).thenReturn(0.5);
+
+        assertThat(JobManager.getRetryDelay(0, Duration.ZERO, mRandom))
+                .isEqualTo(Duration.ofSeconds(15));
+        assertThat(JobManager.getRetryDelay(1, Duration.ZERO, mRandom))
+                .isEqualTo(Duration.ofSeconds(30));
+        assertThat(JobManager.getRetryDelay(2, Duration.ZERO, mRandom))
+                .isEqualTo(Duration.ofSeconds(60));
+    }
+
+    @Test
+    public void getRetryDelay_manyRetries_cappedByMaxDelay() {
+        when(mRandom.nextDouble()).thenReturn(0.5);
+
+        assertThat(JobManager.getRetryDelay(100, Duration.ZERO, mRandom))
+                .isEqualTo(Duration.ofMinutes(30));
+    }
+
+    @Test
+    public void getRetryDelay_shorterThanRetryAfter_returnRetryAfter() {
+        when(mRandom.nextDouble()).thenReturn(0.5);
+
+        assertThat(JobManager.getRetryDelay(0, Duration.ofSeconds(120), mRandom))
+                .isEqualTo(Duration.ofSeconds(120));
+    }
+
+    @Test
+    public void getValidityJitter_withinJitterPercent() {
+        Duration validity = Duration.ofDays(1);
+
+        Duration jitter = JobManager.getValidityJitter("DEVICE_ID", 1, validity, 10);
+
+        assertThat(jitter).isAtLeast(Duration.ZERO);
+        assertThat(jitter).isAtMost(Duration.ofMillis(validity.toMillis() / 10));
+    }
+
+    @Test
+    public void getValidityJitter_sameDevice_sameJitter() {
+        Duration validity = Duration.ofDays(1);
+
+        assertThat(JobManager.getValidityJitter("DEVICE_ID", 1, validity, 10))
+                .isEqualTo(JobManager.getValidityJitter("DEVICE_ID", 1, validity, 10));
+    }
+
+    @Test
+    public void getValidityJitter_zeroPercent_noJitter() {
+        assertThat(JobManager.getValidityJitter("DEVICE_ID", 1, Duration.ofDays(1), 0))
+                .isEqualTo(Duration.ZERO);
+    }
+}
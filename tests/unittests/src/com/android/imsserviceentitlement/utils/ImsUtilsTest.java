@@ -18,8 +18,11 @@ package com.android.imsserviceentitlement.utils;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.os.PersistableBundle;
@@ -27,10 +30,13 @@ import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.ims.ImsMmTelManager;
 import android.telephony.ims.ProvisioningManager;
+import android.telephony.ims.stub.ImsConfigImplBase;
 
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.google.common.collect.ImmutableMap;
+
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -38,6 +44,9 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import java.util.Map;
+import java.util.Optional;
+
 @RunWith(AndroidJUnit4.class)
 public class ImsUtilsTest {
     @Rule public final MockitoRule rule = MockitoJUnit.rule();
@@ -80,4 +89,74 @@ public class ImsUtilsTest {
 
         verify(mMockImsMmTelManager).setVoWiFiSettingEnabled(false);
     }
+
+    @Test
+    public void setProvisioned_oneKeyFailed_otherKeysSet() {
+        doThrow(new IllegalStateException())
+                .when(mMockProvisioningManager)
+                .setProvisioningIntValue(eq(ImsUtils.KEY_VOLTE_PROVISIONING_STATUS), anyInt());
+        ImsUtils imsUtils = new ImsUtils(
+                new PersistableBundle(), mMockImsMmTelManager, mMockProvisioningManager);
+
+        Map<Integer, Boolean> results = imsUtils.setProvisioned(ImmutableMap.of(
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, true,
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, false));
+
+        assertThat(results).containsExactly(
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, false,
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, true);
+        verify(mMockProvisioningManager).setProvisioningIntValue(
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE,
+                ProvisioningManager.PROVISIONING_VALUE_DISABLED);
+    }
+
+    @Test
+    public void setProvisioned_resultFailed_reportFailed() {
+        when(mMockProvisioningManager.setProvisioningIntValue(
+                eq(ImsUtils.KEY_VOLTE_PROVISIONING_STATUS), anyInt()))
+                .thenReturn(ImsConfigImplBase.CONFIG_RESULT_FAILED);
+        ImsUtils imsUtils = new ImsUtils(
+                new PersistableBundle(), mMockImsMmTelManager, mMockProvisioningManager);
+
+        Map<Integer, Boolean> results = imsUtils.setProvisioned(ImmutableMap.of(
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, true,
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, false));
+
+        assertThat(results).containsExactly(
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS, false,
+                ImsUtils.KEY_VOICE_OVER_WIFI_ENABLED_OVERRIDE, true);
+    }
+
+    @Test
+    public void getProvisioned_enabledOrDisabled_returnValue() {
+        when(mMockProvisioningManager.getProvisioningIntValue(
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS))
+                .thenReturn(ProvisioningManager.PROVISIONING_VALUE_ENABLED);
+        when(mMockProvisioningManager.getProvisioningIntValue(ImsUtils.KEY_SMS_OVER_IP_ENABLED))
+                .thenReturn(ProvisioningManager.PROVISIONING_VALUE_DISABLED);
+        ImsUtils imsUtils = new ImsUtils(
+                new PersistableBundle(), mMockImsMmTelManager, mMockProvisioningManager);
+
+        assertThat(imsUtils.getProvisioned(ImsUtils.KEY_VOLTE_PROVISIONING_STATUS))
+                .isEqualTo(Optional.of(true));
+        assertThat(imsUtils.getProvisioned(ImsUtils.KEY_SMS_OVER_IP_ENABLED))
+                .isEqualTo(Optional.of(false));
+    }
+
+    @Test
+    public void getProvisioned_unknownOrFailed_returnEmpty() {
+        when(mMockProvisioningManager.getProvisioningIntValue(
+                ImsUtils.KEY_VOLTE_PROVISIONING_STATUS))
+                .thenReturn(ProvisioningManager.PROVISIONING_RESULT_UNKNOWN);
+        doThrow(new IllegalStateException())
+                .when(mMockProvisioningManager)
+                .getProvisioningIntValue(ImsUtils.KEY_SMS_OVER_IP_ENABLED);
+        ImsUtils imsUtils = new ImsUtils(
+                new PersistableBundle(), mMockImsMmTelManager, mMockProvisioningManager);
+
+        assertThat(imsUtils.getProvisioned(ImsUtils.KEY_VOLTE_PROVISIONING_STATUS).isPresent())
+                .isFalse();
+        assertThat(imsUtils.getProvisioned(ImsUtils.KEY_SMS_OVER_IP_ENABLED).isPresent())
+                .isFalse();
+    }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+import java.lang.reflect.Field;
+
+@RunWith(AndroidJUnit4.class)
+public class TelephonyUtilsTest {
+    @Rule public final MockitoRule rule = MockitoJUnit.rule();
+
+    @Spy private Context mContext = ApplicationProvider.getApplicationContext();
+
+    @Mock private CarrierConfigManager mCarrierConfigManager;
+    @Mock private SubscriptionManager mSubscriptionManager;
+    @Mock private SubscriptionInfo mSubscriptionInfo;
+
+    private static final int SUB_ID = 1;
+    private static final int SLOT_ID = 0;
+    private static final String SENDER_ID = "SENDER_ID";
+    private static final String SERVER_URL = "https://entitlement.example.com";
+
+    @Before
+    public void setUp() {
+        when(mContext.getSystemService(CarrierConfigManager.class))
+                .thenReturn(mCarrierConfigManager);
+        setCarrierConfig(SENDER_ID);
+        TelephonyUtils.invalidateCarrierConfigCache(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+    }
+
+    @Test
+    public void getCarrierConfigValues_readCarrierConfigOnce() {
+        assertThat(TelephonyUtils.getFcmSenderId(mContext, SUB_ID)).isEqualTo(SENDER_ID);
+        assertThat(TelephonyUtils.getEntitlementServerUrl(mContext, SUB_ID)).isEqualTo(SERVER_URL);
+        assertThat(TelephonyUtils.isImsProvisioningRequired(mContext, SUB_ID)).isTrue();
+
+        verify(mCarrierConfigManager, times(1)).getConfigForSubId(SUB_ID);
+    }
+
+    @Test
+    public void getFcmSenderId_afterInvalidate_readCarrierConfigAgain() {
+        TelephonyUtils.getFcmSenderId(mContext, SUB_ID);
+        setCarrierConfig("NEW_SENDER_ID");
+
+        TelephonyUtils.invalidateCarrierConfigCache(SUB_ID);
+
+        assertThat(TelephonyUtils.getFcmSenderId(mContext, SUB_ID)).isEqualTo("NEW_SENDER_ID");
+    }
+
+    @Test
+    public void getFcmSenderId_carrierConfigNotLoaded_notCached() {
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(null);
+
+        assertThat(TelephonyUtils.getFcmSenderId(mContext, SUB_ID)).isEmpty();
+        setCarrierConfig(SENDER_ID);
+
+        assertThat(TelephonyUtils.getFcmSenderId(mContext, SUB_ID)).isEqualTo(SENDER_ID);
+    }
+
+    @Test
+    public void getFcmSenderId_carrierConfigChangedWhileReading_notCached() {
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID))
+                .thenAnswer(invocation -> {
+                    // Changed before the read returns the old one.
+                    TelephonyUtils.invalidateCarrierConfigCache(SUB_ID);
+                    return createCarrierConfig(SENDER_ID);
+                })
+                .thenReturn(createCarrierConfig("NEW_SENDER_ID"));
+
+        assertThat(TelephonyUtils.getFcmSenderId(mContext, SUB_ID)).isEqualTo(SENDER_ID);
+
+        assertThat(TelephonyUtils.getFcmSenderId(mContext, SUB_ID)).isEqualTo("NEW_SENDER_ID");
+    }
+
+    @Test
+    public void getVersValidityJitterPercent_notConfigured_returnDefault() {
+        assertThat(TelephonyUtils.getVersValidityJitterPercent(mContext, SUB_ID)).isEqualTo(10);
+    }
+
+    @Test
+    public void getVersValidityJitterPercent_outOfRange_clamped() {
+        PersistableBundle carrierConfig = new PersistableBundle();
+        carrierConfig.putInt(TelephonyUtils.KEY_VERS_VALIDITY_JITTER_PERCENT_INT, 150);
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID)).thenReturn(carrierConfig);
+
+        assertThat(TelephonyUtils.getVersValidityJitterPercent(mContext, SUB_ID)).isEqualTo(100);
+    }
+
+    @Test
+    public void getSlotId_readActiveSubscriptionsOnce() {
+        setActiveSubscription();
+
+        assertThat(TelephonyUtils.isActivedSubId(mContext, SUB_ID)).isTrue();
+        assertThat(TelephonyUtils.getSlotId(mContext, SUB_ID)).isEqualTo(SLOT_ID);
+        assertThat(TelephonyUtils.isActivedSubId(mContext, SUB_ID + 1)).isFalse();
+
+        verify(mSubscriptionManager, times(1)).getActiveSubscriptionInfoList();
+    }
+
+    @Test
+    public void getSlotId_afterSubscriptionsChanged_readActiveSubscriptionsAgain() {
+        setActiveSubscription();
+        TelephonyUtils.getSlotId(mContext, SUB_ID);
+        when(mSubscriptionManager.getActiveSubscriptionInfoList()).thenReturn(ImmutableList.of());
+
+        TelephonyUtils.invalidateSubscriptionsCache();
+
+        assertThat(TelephonyUtils.getSlotId(mContext, SUB_ID))
+                .isEqualTo(SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+    }
+
+    @Test
+    public void getSlotId_notifiedOnRegistration_notReadActiveSubscriptionsAgain()
+            throws Exception {
+        setActiveSubscription();
+        resetSubscriptionsChangedListener();
+        TelephonyUtils.getSlotId(mContext, SUB_ID);
+        ArgumentCaptor<OnSubscriptionsChangedListener> listenerCaptor =
+                ArgumentCaptor.forClass(OnSubscriptionsChangedListener.class);
+        verify(mSubscriptionManager)
+                .addOnSubscriptionsChangedListener(any(), listenerCaptor.capture());
+
+        listenerCaptor.getValue().onSubscriptionsChanged();
+        TelephonyUtils.getSlotId(mContext, SUB_ID);
+
+        verify(mSubscriptionManager, times(1)).getActiveSubscriptionInfoList();
+
+        listenerCaptor.getValue().onSubscriptionsChanged();
+        TelephonyUtils.getSlotId(mContext, SUB_ID);
+
+        verify(mSubscriptionManager, times(2)).getActiveSubscriptionInfoList();
+    }
+
+    private void setActiveSubscription() {
+        when(mSubscriptionInfo.getSubscriptionId()).thenReturn(SUB_ID);
+        when(mSubscriptionInfo.getSimSlotIndex()).thenReturn(SLOT_ID);
+        when(mSubscriptionManager.getActiveSubscriptionInfoList())
+                .thenReturn(ImmutableList.of(mSubscriptionInfo));
+        when(mContext.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE))
+                .thenReturn(mSubscriptionManager);
+        when(mContext.getApplicationContext()).thenReturn(mContext);
+        TelephonyUtils.invalidateSubscriptionsCache();
+    }
+
+    private static void resetSubscriptionsChangedListener() throws Exception {
+        Field field = TelephonyUtils.class.getDeclaredField("sSubscriptionsChangedListener");
+        field.setAccessible(true);
+        field.set(null, null);
+    }
+
+    private void setCarrierConfig(String senderId) {
+        when(mCarrierConfigManager.getConfigForSubId(SUB_ID))
+                .thenReturn(createCarrierConfig(senderId));
+    }
+
+    private static PersistableBundle createCarrierConfig(String senderId) {
+        PersistableBundle carrierConfig = new PersistableBundle();
+        carrierConfig.putString(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_FCM_SENDER_ID_STRING, senderId);
+        carrierConfig.putString(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_ENTITLEMENT_SERVER_URL_STRING,
+                SERVER_URL);
+        carrierConfig.putBoolean(
+                CarrierConfigManager.ImsServiceEntitlement.KEY_IMS_PROVISIONING_BOOL, true);
+        return carrierConfig;
+    }
+}
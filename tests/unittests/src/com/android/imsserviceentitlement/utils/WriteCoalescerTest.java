@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.imsserviceentitlement.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class WriteCoalescerTest {
+    @Test
+    public void awaitDurable_pendingWrites_flushed() {
+        List<String> writes = new ArrayList<>();
+
+        WriteCoalescer.enqueue("KEY_1", () -> writes.add("1"));
+        WriteCoalescer.enqueue("KEY_2", () -> writes.add("2"));
+        WriteCoalescer.awaitDurable();
+
+        assertThat(writes).containsExactly("1", "2").inOrder();
+    }
+
+    @Test
+    public void awaitDurable_sameKey_lastWriteOnly() {
+        List<String> writes = new ArrayList<>();
+
+        WriteCoalescer.enqueue("KEY", () -> writes.add("1"));
+        WriteCoalescer.enqueue("KEY", () -> writes.add("2"));
+        WriteCoalescer.awaitDurable();
+
+        assertThat(writes).containsExactly("2");
+    }
+
+    @Test
+    public void awaitDurable_failedWrite_otherWritesFlushed() {
+        List<String> writes = new ArrayList<>();
+
+        WriteCoalescer.enqueue("KEY_1", () -> {
+            throw new IllegalStateException();
+        });
+        WriteCoalescer.enqueue("KEY_2", () -> writes.add("2"));
+        WriteCoalescer.awaitDurable();
+
+        assertThat(writes).containsExactly("2");
+    }
+}
@@ -88,6 +88,16 @@ public class XmlDocTest {
                     + "</characteristic>"
                     + "</wap-provisioningdoc>";
 
+    // A XML sample with an unescaped "&" followed by a name of other entity
+    private static final String AUTH_RESPONSE_XML_7 =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "<characteristic type=\"APPLICATION\">"
+                    + "<parm name=\"AppID\" value=\"ap2004\"/>"
+                    + "<parm name=\"ServiceFlow_UserData\" value=\""
+                    + "PostData=U6%2FbQ%2BEP&lt=en_US&amp\"/>"
+                    + "</characteristic>"
+                    + "</wap-provisioningdoc>";
+
     // A XML sample with server URL and user data unset.
     private static final String AUTH_RESPONSE_XML_4 =
             "<wap-provisioningdoc version=\"1.1\">"
@@ -111,6 +121,18 @@ public class XmlDocTest {
                     + "</characteristic>"
                     + "</wap-provisioningdoc>";
 
+    // A XML sample with a characteristic nested in APPLICATION
+    private static final String AUTH_RESPONSE_XML_6 =
+            "<wap-provisioningdoc version=\"1.1\">"
+                    + "<characteristic type=\"APPLICATION\">"
+                    + "<parm name=\"AppID\" value=\"ap2004\"/>"
+                    + "<parm name=\"EntitlementStatus\" value=\"1\"/>"
+                    + "<characteristic type=\"ServiceFlow\">"
+                    + "<parm name=\"ServiceFlow_URL\" value=\"https://example.com\"/>"
+                    + "</characteristic>"
+                    + "</characteristic>"
+                    + "</wap-provisioningdoc>";
+
     private static final String TOKEN = "kZYfCEpSsMr88KZVmab5UsZVzl+nWSsX";
 
     @Test
@@ -148,6 +170,15 @@ public class XmlDocTest {
                 .isEqualTo("PostData=U6%2FbQ%2BEP&amp;l=en_US");
     }
 
+    @Test
+    public void parseAuthenticateResponse7() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_7);
+
+        // Note the "&" in input XML is kept as is even it looks like an entity
+        assertThat(xmlDoc.get("APPLICATION", "ServiceFlow_UserData", "ap2004").get())
+                .isEqualTo("PostData=U6%2FbQ%2BEP&lt=en_US&amp");
+    }
+
     @Test
     public void parseAuthenticateResponse4() {
         XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_4);
@@ -164,4 +195,44 @@ public class XmlDocTest {
         assertThat(xmlDoc.get("APPLICATION", "EntitlementStatus", "ap2004").get()).isEqualTo("0");
         assertThat(xmlDoc.get("APPLICATION", "EntitlementStatus", "ap2005").get()).isEqualTo("1");
     }
+
+    @Test
+    public void parseAuthenticateResponse_domEngine() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_2, XmlDoc.Engine.DOM);
+
+        assertThat(xmlDoc.get("TOKEN", "token", "ap2004").get()).isEqualTo(TOKEN);
+        assertThat(xmlDoc.get("APPLICATION", "ServiceFlow_UserData", "ap2004").get())
+                .isEqualTo("PostData=U6%2FbQ%2BEP&req_locale=en_US");
+    }
+
+    @Test
+    public void parseAuthenticateResponse_malformedXml_domEngine() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_4, XmlDoc.Engine.DOM);
+
+        assertThat(xmlDoc.get("APPLICATION", "ServiceFlow_URL", "ap2004").isPresent()).isFalse();
+    }
+
+    @Test
+    public void parseAuthenticateResponse_nestedCharacteristic_pullEngineSameAsDomEngine() {
+        XmlDoc pullXmlDoc = new XmlDoc(AUTH_RESPONSE_XML_6, XmlDoc.Engine.PULL);
+        XmlDoc domXmlDoc = new XmlDoc(AUTH_RESPONSE_XML_6, XmlDoc.Engine.DOM);
+
+        assertThat(pullXmlDoc.get("APPLICATION", "ServiceFlow_URL", "ap2004").get())
+                .isEqualTo("https://example.com");
+        assertThat(pullXmlDoc.get("ServiceFlow", "ServiceFlow_URL", null).get())
+                .isEqualTo("https://example.com");
+        assertThat(domXmlDoc.get("APPLICATION", "ServiceFlow_URL", "ap2004"))
+                .isEqualTo(pullXmlDoc.get("APPLICATION", "ServiceFlow_URL", "ap2004"));
+        assertThat(domXmlDoc.get("ServiceFlow", "ServiceFlow_URL", null))
+                .isEqualTo(pullXmlDoc.get("ServiceFlow", "ServiceFlow_URL", null));
+    }
+
+    @Test
+    public void getOrDefault_notExist_returnsDefaultValue() {
+        XmlDoc xmlDoc = new XmlDoc(AUTH_RESPONSE_XML_5);
+
+        assertThat(xmlDoc.getOrDefault("APPLICATION", "EntitlementStatus", "ap2003", "2"))
+                .isEqualTo("2");
+        assertThat(xmlDoc.getOrDefault("TOKEN", "token", null, null)).isNull();
+    }
 }